@@ -0,0 +1,166 @@
+/**
+ * @author Waldo & Penzen
+ */
+
+/**
+ * An AdmissionControl object decides whether a newly submitted Task may enter
+ * the pipeline, so that no single client can use up all of the server's capacity.
+ *
+ * A Task must pass up to three TokenBuckets: one for its client session (tasks
+ * per second), one shared by all clients (tasks per second) and one shared by
+ * all clients weighted by the Task's estimated cost (n). A Task over a limit is
+ * either rejected straight away or deferred, holding up its client's intake
+ * until it fits, depending on the Policy.
+ *
+ * Each session has its own bucket and the shared buckets are lock-free, so
+ * admission adds no lock contention to the intake path.
+ */
+public class AdmissionControl
+{
+    /**
+     * Enumeration of what happens to a Task which is over a limit.
+     */
+    public enum Policy {
+        REJECT,
+        DEFER
+    }
+
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private TokenBucket globalTasks;
+    private TokenBucket globalCost;
+    private double sessionRate = 0;
+    private double sessionBurst = 0;
+    private SchedulingQueue.CostEstimator estimator = SchedulingQueue.BY_FACTORIAL;
+    private Policy policy = Policy.REJECT;
+    private long maxDeferMillis = 1000;
+
+    /**
+     * Limits the number of Tasks per second accepted from all clients.
+     * @param rate tasks per second
+     * @param burst tasks accepted at once after an idle period
+     */
+    public void setGlobalLimit(double rate, double burst)
+    {
+        this.globalTasks = new TokenBucket(rate, burst);
+    }
+
+    /**
+     * Limits the total estimated cost per second accepted from all clients. A
+     * Task costing more than the burst is accepted once the limit is unused, and
+     * holds up the Tasks after it for as long as its cost takes to pay off.
+     * @param rate cost units per second
+     * @param burst cost units accepted at once after an idle period
+     */
+    public void setCostLimit(double rate, double burst)
+    {
+        this.globalCost = new TokenBucket(rate, burst);
+    }
+
+    /**
+     * Limits the number of Tasks per second accepted from each client session.
+     * @param rate tasks per second
+     * @param burst tasks accepted at once after an idle period
+     */
+    public void setSessionLimit(double rate, double burst)
+    {
+        this.sessionRate = rate;
+        this.sessionBurst = burst;
+    }
+
+    /**
+     * Sets how the cost of a Task is estimated for the cost limit.
+     * @param estimator of task cost
+     */
+    public void setCostEstimator(SchedulingQueue.CostEstimator estimator)
+    {
+        this.estimator = estimator;
+    }
+
+    /**
+     * Sets what happens to a Task which is over a limit.
+     * @param policy to apply
+     * @param maxDeferMillis longest a Task is deferred before it is rejected anyway
+     */
+    public void setPolicy(Policy policy, long maxDeferMillis)
+    {
+        this.policy = policy;
+        this.maxDeferMillis = maxDeferMillis;
+    }
+
+    /**
+     * Creates the per-session state for a newly connected client.
+     * @return session bucket, or null if sessions are not limited
+     */
+    public TokenBucket newSession()
+    {
+        return (sessionRate > 0) ? new TokenBucket(sessionRate, sessionBurst) : null;
+    }
+
+    /**
+     * Decides whether a Task may enter the pipeline. With the DEFER policy this
+     * blocks the calling client's intake until the Task fits or the maximum
+     * deferral has passed.
+     * @param session bucket of the submitting client, may be null
+     * @param task submitted
+     * @return null if admitted, otherwise the reason it was rejected
+     */
+    public String admit(TokenBucket session, Task task)
+    {
+        long deadline = System.nanoTime() + maxDeferMillis * NANOS_PER_MILLI;
+
+        while(true)
+        {
+            String limit = null;
+            long wait = 0;
+
+            double cost = estimator.cost(task);
+            if(session != null && (wait = session.tryAcquire(1)) > 0)
+            {
+                limit = "session rate limit";
+            }
+            else if(globalTasks != null && (wait = globalTasks.tryAcquire(1)) > 0)
+            {
+                refund(session, null);
+                limit = "server rate limit";
+            }
+            else if(globalCost != null && (wait = globalCost.tryAcquire(cost)) > 0)
+            {
+                refund(session, globalTasks);
+                limit = "server cost limit";
+            }
+
+            if(limit == null)
+            {
+                return null;
+            }
+
+            if(policy == Policy.REJECT || System.nanoTime() + wait > deadline)
+            {
+                return limit;
+            }
+
+            try {
+                Thread.sleep(Math.max(1, wait / NANOS_PER_MILLI));
+            } catch (InterruptedException ignored) {
+                /* Ignored */
+            }
+        }
+    }
+
+    /**
+     * Internal helper method which gives back the task taken from the buckets
+     * a Task had already passed before being turned away by a later one.
+     */
+    private void refund(TokenBucket session, TokenBucket global)
+    {
+        if(session != null)
+        {
+            session.refund(1);
+        }
+        if(global != null)
+        {
+            global.refund(1);
+        }
+    }
+}
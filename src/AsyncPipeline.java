@@ -0,0 +1,229 @@
+/**
+ * @author Waldo & Penzen
+ */
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * An AsyncPipeline object is an alternative processing engine to the Worker
+ * thread pools. Rather than each stage having its own threads polling its own
+ * input queue, every Task runs as a chain of CompletableFutures:
+ *
+ *      factorial stage -> prime stage -> delivery to the output queues
+ *
+ * with each stage on its own Executor. A stage hands its Task straight to the
+ * next stage's Executor when it finishes, so there is no queue to poll and no
+ * thread sleeping between Tasks.
+ *
+ * The stages use the FactorialCalculation and PrimeCalculation the Workers use,
+ * so the results are the same as the queue-based pipeline. A factorial which takes more
+ * than one time slice is resubmitted to its Executor after each slice, behind any
+ * Tasks already waiting, as the FactorialWorker would re-queue it.
+ *
+ * The AsyncPipeline is a Listener, so it takes the place of the FactorialWorker
+ * on the input queues. Tasks which skip the factorial stage, such as the rest of
+ * a range chunk, enter through getPrimeStage().
+ */
+public class AsyncPipeline implements NotificationQueue.Listener<Task>
+{
+    private final Calculation factorial = new FactorialCalculation();
+    private final Calculation prime = new PrimeCalculation();
+    private final Executor factorialExecutor;
+    private final Executor primeExecutor;
+    private final Executor deliveryExecutor;
+
+    private final List<NotificationQueue<Task>> output_queues;
+    // told of each Task as it leaves the factorial stage
+    private final List<NotificationQueue.Listener<Task>> factorialListeners = new CopyOnWriteArrayList<>();
+
+    private final NotificationQueue.Listener<Task> primeStage;
+    private final Function<Task, CompletableFuture<Task>> toPrimeStage;
+    private final BiConsumer<Task, Throwable> failed;
+
+    /**
+     * Constructor for an AsyncPipeline object.
+     * @param factorialExecutor running the factorial stage
+     * @param primeExecutor running the prime stage
+     * @param deliveryExecutor adding finished Tasks to the output queues
+     * @param output_queues to output processed tasks to.
+     */
+    public AsyncPipeline(Executor factorialExecutor, Executor primeExecutor, Executor deliveryExecutor,
+            List<NotificationQueue<Task>> output_queues)
+    {
+        this.factorialExecutor = factorialExecutor;
+        this.primeExecutor = primeExecutor;
+        this.deliveryExecutor = deliveryExecutor;
+        this.output_queues = output_queues;
+
+        this.primeStage = new NotificationQueue.Listener<Task>() {
+            @Override
+            public void ping(Task task) {
+                deliver(stage(prime, AsyncPipeline.this.primeExecutor, task));
+            }
+        };
+
+        this.toPrimeStage = new Function<Task, CompletableFuture<Task>>() {
+            @Override
+            public CompletableFuture<Task> apply(Task task) {
+                for(NotificationQueue.Listener<Task> listener : factorialListeners)
+                {
+                    listener.ping(task);
+                }
+                return stage(prime, AsyncPipeline.this.primeExecutor, task);
+            }
+        };
+
+        this.failed = new BiConsumer<Task, Throwable>() {
+            @Override
+            public void accept(Task task, Throwable ex) {
+                if(ex != null)
+                {
+                    Log.error("Async pipeline error: {}", ex);
+                }
+            }
+        };
+    }
+
+    /**
+     * Starts a Task at the factorial stage.
+     * @param task to process
+     */
+    @Override
+    public void ping(Task task)
+    {
+        deliver(stage(factorial, factorialExecutor, task).thenCompose(toPrimeStage));
+    }
+
+    /**
+     * Listener which starts Tasks at the prime stage, for Tasks whose factorial
+     * has already been calculated.
+     * @return prime stage entry point
+     */
+    public NotificationQueue.Listener<Task> getPrimeStage()
+    {
+        return primeStage;
+    }
+
+    /**
+     * Adds a Listener which is told of each Task leaving the factorial stage,
+     * as a Listener on the queue between the stages would be.
+     * @param listener to add
+     */
+    public void addFactorialListener(NotificationQueue.Listener<Task> listener)
+    {
+        factorialListeners.add(listener);
+    }
+
+    /**
+     * Internal helper method which runs a Calculation's processStep on a Task
+     * until the Calculation has finished with it.
+     * @return future completed with the Task once the stage is done
+     */
+    private CompletableFuture<Task> stage(Calculation calculation, Executor executor, Task task)
+    {
+        CompletableFuture<Task> done = new CompletableFuture<>();
+
+        try {
+            executor.execute(new Slice(calculation, executor, task, done));
+        } catch (RuntimeException ex) {
+            // executor has been shut down
+            done.completeExceptionally(ex);
+        }
+
+        return done;
+    }
+
+    /**
+     * Internal helper method which adds a Task to the output queues once its
+     * chain completes.
+     */
+    private void deliver(CompletableFuture<Task> chain)
+    {
+        chain.thenAcceptAsync(new Consumer<Task>() {
+            @Override
+            public void accept(Task task) {
+                synchronized(output_queues)
+                {
+                    for(NotificationQueue<Task> queue : output_queues)
+                    {
+                        queue.add(task);
+                    }
+                }
+            }
+        }, deliveryExecutor);
+
+        chain.whenComplete(failed);
+    }
+
+    /**
+     * Method to shut down the Executors of the AsyncPipeline.
+     */
+    public void requestStop()
+    {
+        for(Executor executor : new Executor[] {factorialExecutor, primeExecutor, deliveryExecutor})
+        {
+            if(executor instanceof ExecutorService)
+            {
+                ((ExecutorService) executor).shutdown();
+            }
+        }
+    }
+
+    /**
+     * A Slice runs one processStep of a stage, resubmitting itself until the
+     * stage's Calculation has finished with the Task.
+     */
+    private static class Slice implements Runnable
+    {
+        private final Calculation calculation;
+        private final Executor executor;
+        private final Task task;
+        private final CompletableFuture<Task> done;
+
+        public Slice(Calculation calculation, Executor executor, Task task, CompletableFuture<Task> done)
+        {
+            this.calculation = calculation;
+            this.executor = executor;
+            this.task = task;
+            this.done = done;
+        }
+
+        @Override
+        public void run()
+        {
+            try {
+                if(task.isAbandoned())
+                {
+                    // passed on without processing, as Worker.skip would
+                    task.cancel();
+                    done.complete(task);
+                    return;
+                }
+
+                TaskEvent.Step step = new TaskEvent.Step();
+                step.begin();
+                calculation.processStep(task);
+                step.finish(task, calculation.getClass().getName());
+
+                if(calculation.isFinished(task))
+                {
+                    done.complete(task);
+                }
+                else
+                {
+                    // preempted - resume after the waiting tasks
+                    executor.execute(this);
+                }
+            } catch (RuntimeException ex) {
+                done.completeExceptionally(ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,393 @@
+/**
+ * @author Waldo & Penzen
+ */
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * A BatchProcessor calculates Factorial Primes for a whole file of n values
+ * offline, without the ProcessServer, sockets or serialization.
+ *
+ * The input file holds n values as whitespace separated decimal text. It is read
+ * through a memory-mapped window which is parsed in place, a round of n values at
+ * a time. Each round is split into TaskBatches which are processed in parallel on
+ * a ForkJoinPool by the same FactorialCalculation and PrimeCalculation batch
+ * logic the pipeline uses, and the results are written in input order through a
+ * memory-mapped window of the output file.
+ *
+ * Output is either CSV lines of n,value,isPrime or binary records of
+ * [n][value][isPrime], the same record layout as the ResultCache snapshot.
+ */
+public class BatchProcessor
+{
+    /**
+     * Enumeration of output file formats.
+     */
+    public enum Format {
+        CSV,
+        BINARY
+    }
+
+    private static final int WINDOW = 64 * 1024 * 1024;
+    private static final int BATCH_CAPACITY = 4096;
+    private static final int RECORD_SIZE = 13;
+
+    private final Calculation factorial = new FactorialCalculation();
+    private final Calculation prime = new PrimeCalculation();
+    private final ForkJoinPool pool;
+    private final TaskBatch.Pool batches;
+    private final Format format;
+    private final int batchesPerRound;
+
+    /**
+     * Constructor for a BatchProcessor object.
+     * @param format of the output file
+     * @param parallelism number of threads processing batches
+     */
+    public BatchProcessor(Format format, int parallelism)
+    {
+        this.format = format;
+        this.pool = new ForkJoinPool(parallelism);
+        // a few batches per thread so that uneven batches balance out
+        this.batchesPerRound = parallelism * 4;
+        this.batches = new TaskBatch.Pool(batchesPerRound, BATCH_CAPACITY);
+    }
+
+    /**
+     * Processes every n in the input file, writing the results to the output file.
+     * @param inputPath file of n values
+     * @param outputPath file to write results to, replaced if it exists
+     * @return number of n processed
+     * @throws IOException if either file could not be read or written, or the input
+     * holds a negative n or one larger than Integer.MAX_VALUE
+     */
+    public long process(String inputPath, String outputPath) throws IOException
+    {
+        long processed = 0;
+
+        try (MappedReader reader = new MappedReader(inputPath);
+             MappedWriter writer = new MappedWriter(outputPath))
+        {
+            List<TaskBatch> round = new ArrayList<>(batchesPerRound);
+
+            while(true)
+            {
+                // fill a round of batches straight from the mapped input
+                for(int i = 0; i < batchesPerRound; ++i)
+                {
+                    TaskBatch batch;
+                    try {
+                        batch = batches.acquire();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for a batch");
+                    }
+
+                    while(batch.size() < batch.capacity() && reader.hasNextInt())
+                    {
+                        batch.add(batch.size(), reader.nextInt());
+                    }
+                    round.add(batch);
+
+                    if(batch.size() < batch.capacity())
+                    {
+                        break;
+                    }
+                }
+
+                processRound(round);
+
+                // a batch which is not full means the input has run out
+                boolean finished = (round.get(round.size() - 1).size() < BATCH_CAPACITY);
+
+                // written in input order
+                for(TaskBatch batch : round)
+                {
+                    processed += batch.size();
+                    write(batch, writer);
+                    batches.release(batch);
+                }
+                round.clear();
+
+                if(finished)
+                {
+                    break;
+                }
+            }
+        }
+
+        return processed;
+    }
+
+    /**
+     * Internal helper method which processes a round of batches in parallel.
+     */
+    private void processRound(List<TaskBatch> round)
+    {
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(round.size());
+        for(final TaskBatch batch : round)
+        {
+            tasks.add(pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    factorial.processBatch(batch);
+                    prime.processBatch(batch);
+                }
+            }));
+        }
+
+        for(ForkJoinTask<?> task : tasks)
+        {
+            task.join();
+        }
+    }
+
+    /**
+     * Internal helper method which writes the results of a batch.
+     */
+    private void write(TaskBatch batch, MappedWriter writer) throws IOException
+    {
+        for(int i = 0; i < batch.size(); ++i)
+        {
+            if(format == Format.BINARY)
+            {
+                MappedByteBuffer out = writer.reserve(RECORD_SIZE);
+                out.putInt(batch.getFactorial(i));
+                out.putLong(batch.getValue(i));
+                out.put((byte) (batch.isPrime(i) ? 1 : 0));
+            }
+            else
+            {
+                byte[] line = (batch.getFactorial(i) + "," + batch.getValue(i) + "," + batch.isPrime(i) + "\n")
+                        .getBytes(StandardCharsets.US_ASCII);
+                writer.reserve(line.length).put(line);
+            }
+        }
+    }
+
+    /**
+     * Method to release the threads of the BatchProcessor.
+     */
+    public void close()
+    {
+        pool.shutdown();
+    }
+
+    /**
+     * A MappedReader parses non-negative decimal integers from a file through a
+     * memory-mapped window which moves along the file as it is read.
+     */
+    private static class MappedReader implements AutoCloseable
+    {
+        private final String path;
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final long length;
+        private MappedByteBuffer window;
+        private long windowStart = 0;
+
+        // the last two bytes read, -1 if none
+        private int current = -1;
+        private int previous = -1;
+        // first digit of the integer found by hasNextInt, -1 if none
+        private int digit = -1;
+
+        public MappedReader(String path) throws IOException
+        {
+            this.path = path;
+            this.file = new RandomAccessFile(path, "r");
+            this.channel = file.getChannel();
+            this.length = channel.size();
+            this.map(0);
+        }
+
+        private void map(long start) throws IOException
+        {
+            this.windowStart = start;
+            this.window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW, length - start));
+        }
+
+        /**
+         * Internal helper method which reads the next byte of the file.
+         * @return byte, or -1 at the end of the file
+         */
+        private int next() throws IOException
+        {
+            if(!window.hasRemaining())
+            {
+                long position = windowStart + window.limit();
+                if(position >= length)
+                {
+                    return -1;
+                }
+                map(position);
+            }
+
+            previous = current;
+            current = window.get() & 0xFF;
+            return current;
+        }
+
+        /**
+         * Internal helper method which gives the file offset of the last byte read.
+         */
+        private long offset()
+        {
+            return windowStart + window.position() - 1;
+        }
+
+        /**
+         * Skips anything which is not a digit up to the next integer.
+         * @return whether there is another integer before the end of the file
+         * @throws IOException if the file could not be mapped or the integer is negative
+         */
+        public boolean hasNextInt() throws IOException
+        {
+            if(digit >= 0)
+            {
+                return true;
+            }
+
+            int c;
+            do {
+                c = next();
+            } while(c >= 0 && (c < '0' || c > '9'));
+
+            if(c < 0)
+            {
+                return false;
+            }
+
+            if(previous == '-')
+            {
+                throw new IOException("Negative n at offset " + (offset() - 1) + " of " + path);
+            }
+
+            digit = c;
+            return true;
+        }
+
+        /**
+         * Reads the next integer.
+         * @return integer
+         * @throws IOException if there is none, it is negative or larger than
+         * Integer.MAX_VALUE, or the file could not be mapped
+         */
+        public int nextInt() throws IOException
+        {
+            if(!hasNextInt())
+            {
+                throw new EOFException("No more n in " + path);
+            }
+
+            long start = offset();
+            int c = digit;
+            digit = -1;
+
+            int value = 0;
+            while(c >= '0' && c <= '9')
+            {
+                int d = c - '0';
+                if(value > (Integer.MAX_VALUE - d) / 10)
+                {
+                    throw new IOException("n is too large at offset " + start + " of " + path);
+                }
+
+                value = value * 10 + d;
+                c = next();
+            }
+
+            return value;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            file.close();
+        }
+    }
+
+    /**
+     * A MappedWriter appends to a file through a memory-mapped window, growing
+     * the file a window at a time and trimming it to the written length on close.
+     */
+    private static class MappedWriter implements AutoCloseable
+    {
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private MappedByteBuffer window;
+        private long windowStart = 0;
+
+        public MappedWriter(String path) throws IOException
+        {
+            this.file = new RandomAccessFile(path, "rw");
+            this.file.setLength(0);
+            this.channel = file.getChannel();
+            this.window = channel.map(FileChannel.MapMode.READ_WRITE, 0, WINDOW);
+        }
+
+        /**
+         * Makes room for a number of bytes in the current window.
+         * @param bytes to be written
+         * @return window to put them into
+         * @throws IOException if the file could not be mapped
+         */
+        public MappedByteBuffer reserve(int bytes) throws IOException
+        {
+            if(window.remaining() < bytes)
+            {
+                windowStart += window.position();
+                window.force();
+                window = channel.map(FileChannel.MapMode.READ_WRITE, windowStart, WINDOW);
+            }
+
+            return window;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            long written = windowStart + window.position();
+            window.force();
+            window = null;
+            file.setLength(written);
+            file.close();
+        }
+    }
+
+    /**
+     * Processes a file of n values.
+     * Usage: BatchProcessor <input> <output> [csv|binary] [threads]
+     * @param args
+     */
+    public static void main(String... args) throws IOException
+    {
+        if(args.length < 2)
+        {
+            System.err.println("Usage: BatchProcessor <input> <output> [csv|binary] [threads]");
+            return;
+        }
+
+        Format format = (args.length > 2) ? Format.valueOf(args[2].toUpperCase()) : Format.CSV;
+        int threads = (args.length > 3) ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+        BatchProcessor processor = new BatchProcessor(format, threads);
+
+        long start = System.currentTimeMillis();
+        long processed = processor.process(args[0], args[1]);
+        long elapsed = System.currentTimeMillis() - start;
+
+        System.out.println("Processed " + processed + " n in " + elapsed + " ms");
+        processor.close();
+    }
+}
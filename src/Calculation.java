@@ -0,0 +1,40 @@
+/**
+ * @author Waldo & Penzen
+ */
+
+/**
+ * A Calculation is the processing logic of one pipeline stage on its own,
+ * without the threads and queues of a Worker. The Workers delegate to one, and
+ * the async engine, RemoteWorker and BatchProcessor use one directly.
+ *
+ * A Calculation keeps no state between calls, so a single object can be shared
+ * by any number of threads.
+ */
+public interface Calculation
+{
+    /**
+     * Processes a Task for up to one time slice.
+     * @param task to process
+     */
+    void processStep(Task task);
+
+    /**
+     * Determines whether a Task needs no more time slices.
+     * @param task which has just been processed
+     * @return whether the task can be passed on
+     */
+    boolean isFinished(Task task);
+
+    /**
+     * Determines whether a Task is cheap enough to be processed in a TaskBatch.
+     * @param task to check
+     * @return whether the task can go in a TaskBatch
+     */
+    boolean canBatch(Task task);
+
+    /**
+     * Batch variant of processStep, every entry is finished once it returns.
+     * @param batch of tasks to process
+     */
+    void processBatch(TaskBatch batch);
+}
@@ -0,0 +1,36 @@
+/**
+ * @author Waldo & Penzen
+ */
+
+import java.io.Serializable;
+
+/**
+ * A CancelRequest is sent by a Client over the same stream as its Tasks to tell
+ * the ProcessServer that it no longer wants the result of a submitted Task.
+ */
+public class CancelRequest implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+    
+    private final int identifier;
+    
+    public CancelRequest(int identifier)
+    {
+        this.identifier = identifier;
+    }
+    
+    /**
+     * Identifier of the Task to cancel.
+     * @return task identifier
+     */
+    public int getIdentifier()
+    {
+        return this.identifier;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return ("CancelRequest("+this.getIdentifier()+")");
+    }
+}
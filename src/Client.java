@@ -20,6 +20,8 @@ public class Client
 {
     private int id;
     private List<Integer> taskIDs = new ArrayList();
+    // names this client's results in the server's result mailbox
+    private final long session = new Random().nextLong() | 1;
     
     private String hostName;
     private int hostPort;
@@ -72,6 +74,7 @@ public class Client
     private void requestInput()
     {        
         System.out.println("Client interface used to communicate with a ProcessServer. \n\nTasks are 2-stage calculations starting with a factorial calculation,\nfollowed by checking whether the value is a Factorial Prime (n - 1) & (n + 1).\n");
+        System.out.println("Enter 'n' or 'n <timeout ms>' to submit a Task, 'range <from> <to>' to search a range, 'cancel <task id>' to cancel one,\n'fetch' to ask for the results of every waiting Task again.\n");
         System.out.print("Please enter the server input hostname and port (localhost:422): ");
         String[] address = keyboardInput.nextLine().split(":");
         if(address.length == 1)
@@ -141,6 +144,9 @@ public class Client
                 {
                     oos = new ObjectOutputStream(socket.getOutputStream());
                     
+                    // name the session first, so results can be fetched again later
+                    oos.writeObject(new FetchRequest(session));
+                    
                     do {   
                         System.out.println("Enter a whole number: ");
                         String line = keyboardInput.nextLine();
@@ -153,10 +159,65 @@ public class Client
                             break;
                         }
                         
+                        // client no longer wants the result of a task
+                        if(line.toLowerCase().startsWith("cancel"))
+                        {
+                            try {
+                                int cancelID = Integer.parseInt(line.substring(6).trim());
+                                oos.writeObject(new CancelRequest(cancelID));
+                                
+                                // cancelled results are not sent back
+                                taskIDs.remove(Integer.valueOf(cancelID));
+                                System.out.println("Cancel requested for Task(" + cancelID + ")");
+                            } catch (NumberFormatException ex)
+                            {
+                                System.out.println("Usage: cancel <task id>");
+                            }
+                            continue;
+                        }
+                        
+                        // client may have missed results, such as while its output connection was down
+                        if(line.toLowerCase().startsWith("fetch"))
+                        {
+                            int[] waiting = new int[taskIDs.size()];
+                            for(int i = 0; i < waiting.length; ++i)
+                            {
+                                waiting[i] = taskIDs.get(i);
+                            }
+                            
+                            oos.writeObject(new FetchRequest(session, waiting));
+                            System.out.println("Fetch requested for " + waiting.length + " Task(s)");
+                            continue;
+                        }
+                        
+                        // client wants to know which n in a range give a factorial prime
+                        if(line.toLowerCase().startsWith("range"))
+                        {
+                            try {
+                                String[] parts = line.substring(5).trim().split("\\s+");
+                                int rangeID = new Random().nextInt(100) + Client.this.hashCode() + Client.this.id;
+                                
+                                oos.writeObject(new RangeTask(rangeID, Integer.parseInt(parts[0]), Integer.parseInt(parts[1])));
+                                taskIDs.add(rangeID);
+                                System.out.println("Submitted Task(" + rangeID + ")");
+                            } catch (NumberFormatException | ArrayIndexOutOfBoundsException ex)
+                            {
+                                System.out.println("Usage: range <from> <to>");
+                            }
+                            continue;
+                        }
+                        
                         int num = 0;
+                        long timeout = 0;
                         
                         try {
-                            num = Integer.parseInt(line);
+                            // optional second number is a timeout in milliseconds
+                            String[] parts = line.trim().split("\\s+");
+                            num = Integer.parseInt(parts[0]);
+                            if(parts.length > 1)
+                            {
+                                timeout = Long.parseLong(parts[1]);
+                            }
                         } catch (NumberFormatException ex)
                         {
                             System.out.println("Please enter a whole number greater than 0!");
@@ -168,9 +229,11 @@ public class Client
                         int taskID = new Random().nextInt(100) + Client.this.hashCode() + Client.this.id;
                         
                         Task task = new Task(taskID, num);
+                        task.setTimeout(timeout);
 
                         oos.writeObject(task);
                         taskIDs.add(taskID); 
+                        System.out.println("Submitted Task(" + taskID + ")");
                         
                         // Computer generated tasks
                         /*for(int i = 1; i < 11; ++i)
@@ -2,27 +2,81 @@
  * @author Waldo & Penzen
  */
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The ClientOutputWorker is an extension of the Worker class, it takes in the number of threads 
  * and list of notification queue and it  then send to the super class.
+ * 
+ * Each ClientOutputWorker buffers at most a fixed number of results in memory. Once
+ * its buffer is full, further results are handled by its OverflowPolicy so a client
+ * which stops reading cannot grow server memory or hold up other clients. Every
+ * result is broadcast to every client, so a client which is only slow to read can
+ * fill its buffer too. The default policy therefore keeps the connection and the
+ * newest results, and disconnecting is left to be chosen explicitly.
  */
-public class ClientOutputWorker extends Worker {
+public class ClientOutputWorker extends Worker implements ConnectionManager.Connection {
+    /**
+     * Enumeration of what happens to a result when a connection's buffer is full.
+     */
+    public enum OverflowPolicy {
+        // the arriving result is dropped
+        DROP,
+        // the oldest buffered result is dropped to make room
+        DROP_OLDEST,
+        // the connection is closed
+        DISCONNECT,
+        // results are written to a file until the client catches up
+        SPILL
+    }
+    
+    public static final OverflowPolicy DEFAULT_POLICY = OverflowPolicy.DROP_OLDEST;
+    
+    public static final int DEFAULT_CAPACITY = 10000;
+    
     private Socket client;
-    private ObjectOutputStream objectOutputStream;
+    private OutputStream outputStream;
+    
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final Object bufferLock = new Object();
+    private final AtomicLong dropped = new AtomicLong();
+    private SpillFile spill;
+    private volatile boolean disconnected = false;
+    private volatile long lastWrite = System.currentTimeMillis();
+    private ConnectionManager manager;
     
     public ClientOutputWorker(Socket client, int num_threads, List<NotificationQueue<Task>> output_queues)
+    {
+        this(client, num_threads, output_queues, DEFAULT_CAPACITY, DEFAULT_POLICY);
+    }
+    
+    /**
+     * Constructor for a ClientOutputWorker with a bounded outbound buffer.
+     * @param client socket to write results to
+     * @param num_threads to create in Thread pool
+     * @param output_queues to output processed tasks to.
+     * @param capacity number of results buffered in memory
+     * @param policy applied to results arriving while the buffer is full
+     */
+    public ClientOutputWorker(Socket client, int num_threads, List<NotificationQueue<Task>> output_queues,
+            int capacity, OverflowPolicy policy)
     {
         // output will be a
         super(num_threads, output_queues);
         this.client = client;
+        this.capacity = capacity;
+        this.policy = policy;
         
         try {
-            objectOutputStream = new ObjectOutputStream(this.client.getOutputStream());
+            outputStream = new BufferedOutputStream(this.client.getOutputStream());
+            ResultFrame.writeHeader(outputStream);
         } catch (IOException ex) {
             System.err.println("Client worker error: Could not open Output Stream. Is the socket closed?");
         }
@@ -30,6 +84,8 @@ public class ClientOutputWorker extends Worker {
     
     /**
      * Broadcast a Task object over a connected Client socket connection.
+     * The Task is serialized once into a ResultFrame which is shared by every
+     * ClientOutputWorker it is broadcast to.
      * @param task to broadcast
      */
     @Override
@@ -40,24 +96,259 @@ public class ClientOutputWorker extends Worker {
         // If this fails, we know that the connection has been disconnected, which
         // therefore calls requestStop() for itself.
         
-        // Since this thread will forever be idle until a new task is passed to it,
-        // when a client disconnects, this thread remain 'active' but idling. This
-        // thread will only terminate when a new client sends a Task through the 
-        // processing pipeline, triggering the disconnection code in the catch
-        // block. Not to worry, this thread does not use any CPU time when dormant.
+        // While there is nothing to send, the ConnectionManager's heartbeats
+        // find a disconnected client instead, and either way the manager then
+        // removes this worker from the output queues so its thread can finish.
         
         try 
         {                
-            synchronized(objectOutputStream)
+            TaskEvent.Written written = new TaskEvent.Written();
+            written.begin();
+            
+            ResultFrame frame = task.toFrame();
+            
+            synchronized(outputStream)
             {
-                objectOutputStream.writeObject(task);      
+                frame.writeTo(outputStream);
+                outputStream.flush();
             }
+            
+            lastWrite = System.currentTimeMillis();
+            written.finish(task, client.getInetAddress());
+            
+            drainSpill();
         }
         catch (IOException ex)
         {
             // client has disconnected
-            this.requestStop();
-            System.out.println("[Dispatcher] " + client.getInetAddress() + " has disconnected!");
+            this.disconnect();
+            Log.info("[Dispatcher] {} has disconnected!", client.getInetAddress());
+        }
+    }
+    
+    /**
+     * Buffers a result for this connection, applying the OverflowPolicy when the
+     * buffer is full. Once results have been spilled, every following result is
+     * spilled too so that results stay in order.
+     * @param task to buffer
+     */
+    @Override
+    public void process(Task task)
+    {
+        // sub-tasks are collected into their parent's result on the server
+        if(disconnected || task.getParent() != null)
+        {
+            return;
+        }
+        
+        synchronized(bufferLock)
+        {
+            boolean spilling = (spill != null && spill.size() > 0);
+            
+            if(!spilling && backlog() < capacity)
+            {
+                super.process(task);
+                return;
+            }
+            
+            switch(policy)
+            {
+                case DROP:
+                    dropped.incrementAndGet();
+                    break;
+                case DROP_OLDEST:
+                    List<Task> oldest = new ArrayList<>(1);
+                    drainTo(oldest, 1);
+                    dropped.addAndGet(oldest.size());
+                    super.process(task);
+                    break;
+                case DISCONNECT:
+                    Log.warn("[Dispatcher] {} is too slow, disconnecting!", client.getInetAddress());
+                    disconnect();
+                    break;
+                case SPILL:
+                    try {
+                        if(spill == null)
+                        {
+                            spill = new SpillFile();
+                        }
+                        spill.append(task.toFrame());
+                    } catch (IOException ex) {
+                        Log.error("Client worker error: Could not spill result: {}", ex);
+                        dropped.incrementAndGet();
+                    }
+                    break;
+            }
+        }
+    }
+    
+    @Override
+    protected void skip(Task task)
+    {
+        super.skip(task);
+        
+        try {
+            drainSpill();
+        } catch (IOException ex) {
+            this.disconnect();
+            Log.info("[Dispatcher] {} has disconnected!", client.getInetAddress());
+        }
+    }
+    
+    /**
+     * Internal helper method which writes spilled results to the client once the
+     * in-memory buffer has emptied. Results arriving meanwhile are spilled behind
+     * them, so the whole spill is drained before the buffer is used again.
+     * @throws IOException if the client has disconnected
+     */
+    private void drainSpill() throws IOException
+    {
+        while(true)
+        {
+            ResultFrame frame;
+            synchronized(bufferLock)
+            {
+                if(spill == null || backlog() > 0)
+                {
+                    return;
+                }
+                
+                frame = spill.poll();
+            }
+            
+            if(frame == null)
+            {
+                return;
+            }
+            
+            synchronized(outputStream)
+            {
+                frame.writeTo(outputStream);
+                outputStream.flush();
+            }
+            lastWrite = System.currentTimeMillis();
+        }
+    }
+    
+    /**
+     * Sets the ConnectionManager which is told when this connection closes.
+     * @param manager of this connection
+     */
+    public void setConnectionManager(ConnectionManager manager)
+    {
+        this.manager = manager;
+    }
+    
+    @Override
+    public long getLastActive()
+    {
+        // clients wait on this connection for as long as their tasks take
+        return 0;
+    }
+    
+    @Override
+    public boolean heartbeat(long intervalMillis)
+    {
+        if(disconnected || outputStream == null)
+        {
+            return !disconnected;
+        }
+        
+        if(System.currentTimeMillis() - lastWrite < intervalMillis)
+        {
+            return true;
+        }
+        
+        try {
+            synchronized(outputStream)
+            {
+                ResultFrame.HEARTBEAT.writeTo(outputStream);
+                outputStream.flush();
+            }
+            lastWrite = System.currentTimeMillis();
+            return true;
+        } catch (IOException ex) {
+            Log.info("[Dispatcher] {} has disconnected!", client.getInetAddress());
+            return false;
+        }
+    }
+    
+    @Override
+    public void close()
+    {
+        disconnect();
+    }
+    
+    @Override
+    public String toString()
+    {
+        return ("ClientOutputWorker(" + client.getInetAddress() + ")");
+    }
+    
+    /**
+     * Internal helper method which closes the connection and releases its buffers.
+     */
+    private void disconnect()
+    {
+        this.disconnected = true;
+        this.requestStop();
+        
+        try {
+            client.close();
+        } catch (IOException ignored) {
+            /* Ignored */
+        }
+        
+        synchronized(bufferLock)
+        {
+            if(spill != null)
+            {
+                spill.delete();
+                spill = null;
+            }
+        }        
+        if(manager != null)
+        {
+            manager.closed(this);
         }
     }
+    
+    /**
+     * Number of results buffered in memory for this connection.
+     * @return buffer occupancy
+     */
+    public int getOccupancy()
+    {
+        return backlog();
+    }
+    
+    /**
+     * Maximum number of results buffered in memory for this connection.
+     * @return buffer capacity
+     */
+    public int getCapacity()
+    {
+        return capacity;
+    }
+    
+    /**
+     * Number of results currently spilled to disk for this connection.
+     * @return spilled results
+     */
+    public int getSpilled()
+    {
+        synchronized(bufferLock)
+        {
+            return (spill == null) ? 0 : spill.size();
+        }
+    }
+    
+    /**
+     * Number of results dropped because the buffer was full.
+     * @return dropped results
+     */
+    public long getDropped()
+    {
+        return dropped.get();
+    }
 }
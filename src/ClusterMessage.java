@@ -0,0 +1,83 @@
+/**
+ * @author Waldo & Penzen
+ */
+
+import java.io.Serializable;
+
+/**
+ * A ClusterMessage is sent between ProcessServer nodes running in cluster mode.
+ */
+public class ClusterMessage implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+    
+    /**
+     * Enumeration of the kinds of message exchanged between nodes.
+     */
+    enum Type {
+        // a node announcing that it has joined the cluster
+        JOIN,
+        // a task sent to the node which owns it
+        FORWARD,
+        // a processed task sent back to the node holding the client connection
+        RESULT
+    }
+
+    private final Type type;
+    private final String node;
+    private final Task task;
+    // serial number of the task on the node which forwarded it
+    private final long serial;
+
+    public ClusterMessage(Type type, String node, Task task)
+    {
+        this(type, node, task, (task == null) ? 0 : task.getSerial());
+    }
+
+    public ClusterMessage(Type type, String node, Task task, long serial)
+    {
+        this.type = type;
+        this.node = node;
+        this.task = task;
+        this.serial = serial;
+    }
+
+    /**
+     * The methods below are the getters for the private variables above.
+     */
+    public Type getType()
+    {
+        return this.type;
+    }
+
+    /**
+     * Identifier of the node which sent the message.
+     * @return sending node
+     */
+    public String getNode()
+    {
+        return this.node;
+    }
+
+    public Task getTask()
+    {
+        return this.task;
+    }
+
+    /**
+     * Serial number the task has on the node which forwarded it. Each node gives
+     * out its own serial numbers, so a node receiving a task gives it a new one
+     * and uses this to tell the forwarding node which task a result is for.
+     * @return forwarding node's serial number
+     */
+    public long getSerial()
+    {
+        return this.serial;
+    }
+
+    @Override
+    public String toString()
+    {
+        return ("ClusterMessage("+this.getType()+") from "+this.getNode()+" - "+this.getTask());
+    }
+}
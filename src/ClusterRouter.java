@@ -0,0 +1,441 @@
+/**
+ * @author Waldo & Penzen
+ */
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A ClusterRouter connects a ProcessServer to the other nodes of a cluster.
+ *
+ * Every Task accepted by a node is routed by its factorial n, using a HashRing,
+ * to the node which owns that n, so the same n is always processed on the same
+ * node. Tasks owned by another node are forwarded to it, and once processed the
+ * result is sent back to the node holding the client's connection, where it is
+ * added to the local output queues.
+ *
+ * Nodes are identified as host:port, where port is the node's cluster port.
+ * Each node announces itself with a JOIN message on every connection it opens.
+ * When a connection from a node drops, the node is removed from the ring and
+ * any Tasks forwarded to it which have not come back are routed again. When a
+ * node joins, only Tasks accepted afterwards are routed by the new ring. Tasks
+ * already forwarded stay with the node they were sent to, which still sends
+ * their results back, so nothing needs to move.
+ *
+ * With a ResultCache, a node answers a forwarded Task whose n it has computed
+ * before straight from the cache, without adding it to its pipeline.
+ *
+ * Tasks are told apart by serial number rather than by the identifier chosen
+ * by the client. Serial numbers are only unique within a node, so a node
+ * receiving a Task gives it a serial number of its own and remembers which
+ * node, and which serial number on that node, the result must go back to.
+ */
+public class ClusterRouter implements NotificationQueue.Listener<Task>
+{
+    private final String self;
+    private final int port;
+    private final List<String> members;
+    private final HashRing ring = new HashRing();
+
+    private List<NotificationQueue<Task>> input;
+    private List<NotificationQueue<Task>> output;
+
+    // outgoing connections, node -> stream
+    private final Map<String, ObjectOutputStream> peers = new ConcurrentHashMap<>();
+    // tasks forwarded to another node which have not come back, serial -> owning node
+    private final Map<Long, String> forwardedTo = new ConcurrentHashMap<>();
+    private final Map<Long, Task> forwarded = new ConcurrentHashMap<>();
+    // tasks received from another node, local serial -> node holding the client connection
+    private final Map<Long, Origin> origins = new ConcurrentHashMap<>();
+
+    // non-null once set, answers forwarded tasks computed before
+    private ResultCache cache;
+
+    private ServerSocket serverSocket;
+    private volatile boolean running = true;
+
+    /**
+     * Constructor for a ClusterRouter object.
+     * @param self identifier of this node as host:port
+     * @param members identifiers of the other nodes in the cluster
+     */
+    public ClusterRouter(String self, List<String> members)
+    {
+        this.self = self;
+        this.port = Integer.parseInt(self.substring(self.lastIndexOf(':') + 1));
+        this.members = new ArrayList<>(members);
+    }
+
+    /**
+     * Sets the ResultCache which forwarded Tasks are looked up in.
+     * Must be called before start().
+     * @param cache of computed results
+     */
+    public void setCache(ResultCache cache)
+    {
+        this.cache = cache;
+    }
+
+    /**
+     * Starts listening for other nodes and announces this node to every member.
+     * @param input queues at the start of the local pipeline
+     * @param output queues at the end of the local pipeline
+     */
+    public void start(List<NotificationQueue<Task>> input, List<NotificationQueue<Task>> output)
+    {
+        this.input = input;
+        this.output = output;
+
+        ring.add(self);
+
+        try {
+            serverSocket = new ServerSocket(port);
+        } catch (IOException ex) {
+            System.err.println("Cluster can't listen on port: " + ex);
+            return;
+        }
+
+        Thread listener = new Thread(new Listener());
+        listener.start();
+
+        for(String member : members)
+        {
+            if(member.equals(self))
+            {
+                continue;
+            }
+
+            try {
+                connect(member);
+                ring.add(member);
+            } catch (IOException ex) {
+                // not running yet, it will announce itself when it starts
+                System.out.println("[Cluster] " + member + " is not reachable");
+            }
+        }
+
+        System.out.println("[Cluster] " + self + " started with nodes " + ring.getNodes());
+    }
+
+    /**
+     * Routes a newly accepted Task to the node which owns its n.
+     * @param task to route
+     * @return true if the task was forwarded to another node, false if it
+     * should be processed locally
+     */
+    public boolean route(Task task)
+    {
+        while(true)
+        {
+            String owner = ring.owner(task.getFactorial());
+            if(owner == null || owner.equals(self))
+            {
+                return false;
+            }
+
+            forwarded.put(task.getSerial(), task);
+            forwardedTo.put(task.getSerial(), owner);
+
+            try {
+                send(owner, new ClusterMessage(ClusterMessage.Type.FORWARD, self, task));
+                return true;
+            } catch (IOException ex) {
+                forwarded.remove(task.getSerial());
+                forwardedTo.remove(task.getSerial());
+                nodeLeft(owner);
+            }
+        }
+    }
+
+    /**
+     * Tasks reaching the local output queues which came from another node are
+     * sent back to that node.
+     * @param obj processed task
+     */
+    @Override
+    public void ping(Task obj)
+    {
+        Origin origin = origins.remove(obj.getSerial());
+        if(origin == null)
+        {
+            return;
+        }
+
+        sendResult(origin.node, obj, origin.serial);
+    }
+
+    /**
+     * Internal helper method which sends the result of a Task back to the node
+     * holding the client connection.
+     */
+    private void sendResult(String node, Task task, long serial)
+    {
+        try {
+            send(node, new ClusterMessage(ClusterMessage.Type.RESULT, self, task, serial));
+        } catch (IOException ex) {
+            // the client's node is gone, so is the client
+            nodeLeft(node);
+        }
+    }
+
+    /**
+     * Internal helper method which handles a message from another node.
+     */
+    private void receive(ClusterMessage message)
+    {
+        Task task = message.getTask();
+
+        switch(message.getType())
+        {
+            case JOIN:
+                if(ring.add(message.getNode()))
+                {
+                    System.out.println("[Cluster] " + message.getNode() + " joined, nodes " + ring.getNodes());
+                }
+                break;
+            case FORWARD:
+                // computed here before, the result can go straight back
+                if(cache != null && cache.lookup(task))
+                {
+                    sendResult(message.getNode(), task, message.getSerial());
+                    break;
+                }
+
+                // the forwarding node's serial number may clash with one of ours
+                task.assignSerial();
+                origins.put(task.getSerial(), new Origin(message.getNode(), message.getSerial()));
+                addTo(input, task);
+                break;
+            case RESULT:
+                forwardedTo.remove(message.getSerial());
+                Task original = forwarded.remove(message.getSerial());
+                if(original == null)
+                {
+                    // routed again after its node was thought gone, the result is a duplicate
+                    break;
+                }
+
+                // the original object is the one the client's InputHandler holds
+                original.setCurrent(task.getCurrent());
+                original.setValue(task.getValue());
+                original.setPrime(task.isPrime());
+                if(task.isCancelled())
+                {
+                    original.cancel();
+                }
+                addTo(output, original);
+                break;
+        }
+    }
+
+    /**
+     * Internal helper method which removes a node from the ring and routes the
+     * Tasks it had not finished to their new owners.
+     */
+    private void nodeLeft(String node)
+    {
+        ObjectOutputStream stream = peers.remove(node);
+        if(stream != null)
+        {
+            try {
+                stream.close();
+            } catch (IOException ignored) {
+                /* Ignored */
+            }
+        }
+
+        if(!ring.remove(node))
+        {
+            return;
+        }
+
+        System.out.println("[Cluster] " + node + " left, nodes " + ring.getNodes());
+
+        for(Map.Entry<Long, String> entry : forwardedTo.entrySet())
+        {
+            if(!entry.getValue().equals(node))
+            {
+                continue;
+            }
+
+            Task task = forwarded.remove(entry.getKey());
+            forwardedTo.remove(entry.getKey());
+
+            if(task != null && !route(task))
+            {
+                addTo(input, task);
+            }
+        }
+    }
+
+    /**
+     * Internal helper method which adds a Task to every queue in a list.
+     */
+    private void addTo(List<NotificationQueue<Task>> queues, Task task)
+    {
+        for(Queue<Task> queue : queues)
+        {
+            queue.add(task);
+        }
+    }
+
+    /**
+     * Internal helper method which opens a connection to a node and announces
+     * this node on it.
+     */
+    private ObjectOutputStream connect(String node) throws IOException
+    {
+        int split = node.lastIndexOf(':');
+        Socket socket = new Socket(node.substring(0, split), Integer.parseInt(node.substring(split + 1)));
+
+        ObjectOutputStream stream = new ObjectOutputStream(socket.getOutputStream());
+        stream.writeObject(new ClusterMessage(ClusterMessage.Type.JOIN, self, null));
+        stream.flush();
+
+        peers.put(node, stream);
+        return stream;
+    }
+
+    /**
+     * Internal helper method which sends a message to a node, connecting to it
+     * first if needed.
+     */
+    private void send(String node, ClusterMessage message) throws IOException
+    {
+        ObjectOutputStream stream = peers.get(node);
+        if(stream == null)
+        {
+            synchronized(peers)
+            {
+                stream = peers.get(node);
+                if(stream == null)
+                {
+                    stream = connect(node);
+                }
+            }
+        }
+
+        synchronized(stream)
+        {
+            stream.writeObject(message);
+            // keep the stream's handle table from holding every task ever sent
+            stream.reset();
+            stream.flush();
+        }
+    }
+
+    /**
+     * Method to initiate a safe, clean shutdown of the ClusterRouter.
+     */
+    public void requestStop()
+    {
+        this.running = false;
+
+        try {
+            if(serverSocket != null)
+            {
+                serverSocket.close();
+            }
+        } catch (IOException ignored) {
+            /* Ignored */
+        }
+
+        for(ObjectOutputStream stream : peers.values())
+        {
+            try {
+                stream.close();
+            } catch (IOException ignored) {
+                /* Ignored */
+            }
+        }
+    }
+
+    /**
+     * The Listener accepts connections from other nodes.
+     */
+    private class Listener implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            while(running)
+            {
+                try {
+                    Socket socket = serverSocket.accept();
+                    new Thread(new PeerReader(socket)).start();
+                } catch (IOException ex) {
+                    if(running)
+                    {
+                        System.err.println("Cluster can't accept node connection: " + ex);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A PeerReader reads messages from a single connection opened by another node.
+     */
+    private class PeerReader implements Runnable
+    {
+        private final Socket socket;
+        private String node;
+
+        public PeerReader(Socket socket)
+        {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run()
+        {
+            try {
+                ObjectInputStream ois = new ObjectInputStream(socket.getInputStream());
+
+                while(running)
+                {
+                    ClusterMessage message = (ClusterMessage) ois.readObject();
+                    if(node == null)
+                    {
+                        node = message.getNode();
+                    }
+
+                    receive(message);
+                }
+            } catch (IOException | ClassNotFoundException ex) {
+                // connection dropped
+            }
+
+            if(node != null && running)
+            {
+                nodeLeft(node);
+            }
+        }
+    }
+
+    /**
+     * An Origin records where the result of a Task received from another node
+     * must be sent.
+     */
+    private static class Origin
+    {
+        // node holding the client connection
+        private final String node;
+        // serial number of the task on that node
+        private final long serial;
+
+        public Origin(String node, long serial)
+        {
+            this.node = node;
+            this.serial = serial;
+        }
+    }
+}
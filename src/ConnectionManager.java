@@ -0,0 +1,163 @@
+/**
+ * @author Waldo & Penzen
+ */
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A ConnectionManager keeps track of every open client connection and makes sure
+ * the resources of a connection are released as soon as it closes.
+ *
+ * On a fixed interval each connection is sent a heartbeat if nothing else has
+ * been sent to it recently, so a connection whose client has gone is found by
+ * the failed write within a couple of intervals rather than whenever the next
+ * result happens to be written. Connections which have been idle for longer
+ * than the idle timeout are closed.
+ *
+ * When a connection closes, for whatever reason, every listener is pinged with
+ * it once so that it can be removed from wherever it was registered.
+ */
+public class ConnectionManager
+{
+    public static final long DEFAULT_HEARTBEAT = 1000;
+
+    /**
+     * A Connection interface implemented by each kind of client connection.
+     */
+    public interface Connection
+    {
+        /**
+         * Time the connection was last in use, used for the idle timeout.
+         * @return time in epoch milliseconds, or 0 if the connection never goes idle
+         */
+        public long getLastActive();
+
+        /**
+         * Sends a heartbeat unless something else has been sent within the interval.
+         * Connections which have nothing to send on return true.
+         * @param intervalMillis heartbeat interval
+         * @return false if the connection was found to be closed
+         */
+        public boolean heartbeat(long intervalMillis);
+
+        /**
+         * Closes the connection, which must then call closed on its manager.
+         */
+        public void close();
+    }
+
+    private final long heartbeatMillis;
+    private final long idleTimeoutMillis;
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private final List<NotificationQueue.Listener<Connection>> listeners = new CopyOnWriteArrayList<>();
+    private volatile boolean running = true;
+
+    /**
+     * Constructor for a ConnectionManager object.
+     * @param heartbeatMillis interval between heartbeats
+     * @param idleTimeoutMillis time a connection may be idle before it is closed, 0 for no limit
+     */
+    public ConnectionManager(long heartbeatMillis, long idleTimeoutMillis)
+    {
+        this.heartbeatMillis = heartbeatMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+
+        Thread thread = new Thread(new Monitor());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Adds a Listener which is pinged with each connection once it has closed.
+     * @param listener to add
+     */
+    public void addListener(NotificationQueue.Listener<Connection> listener)
+    {
+        listeners.add(listener);
+    }
+
+    /**
+     * Starts managing a newly opened connection.
+     * @param connection opened
+     */
+    public void register(Connection connection)
+    {
+        connections.add(connection);
+    }
+
+    /**
+     * Called by a connection once it has closed. Listeners are pinged the first
+     * time only.
+     * @param connection closed
+     */
+    public void closed(Connection connection)
+    {
+        if(connections.remove(connection))
+        {
+            for(NotificationQueue.Listener<Connection> listener : listeners)
+            {
+                listener.ping(connection);
+            }
+        }
+    }
+
+    /**
+     * Number of open connections.
+     * @return connection count
+     */
+    public int size()
+    {
+        return connections.size();
+    }
+
+    /**
+     * Method to initiate a safe, clean shutdown of the ConnectionManager, closing
+     * every connection.
+     */
+    public void requestStop()
+    {
+        this.running = false;
+
+        for(Connection connection : connections)
+        {
+            connection.close();
+        }
+    }
+
+    /**
+     * The Monitor closes idle connections and sends heartbeats.
+     */
+    private class Monitor implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            while(running)
+            {
+                try {
+                    Thread.sleep(heartbeatMillis);
+                } catch (InterruptedException ignored) {
+                    /* Ignored */
+                }
+
+                long now = System.currentTimeMillis();
+                for(Connection connection : connections)
+                {
+                    long lastActive = connection.getLastActive();
+                    if(idleTimeoutMillis > 0 && lastActive > 0 && now - lastActive > idleTimeoutMillis)
+                    {
+                        Log.info("[Connections] Closing idle connection {}", connection);
+                        connection.close();
+                    }
+                    else if(!connection.heartbeat(heartbeatMillis))
+                    {
+                        connection.close();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * @author Waldo & Penzen
+ */
+
+/**
+ * The FactorialCalculation calculates the factorial of a Task's n, a time slice
+ * at a time, so that a large factorial does not hold up the Tasks behind it.
+ */
+public class FactorialCalculation implements Calculation
+{
+    // Number of multiplications performed before a Task yields its thread
+    public static final int DEFAULT_SLICE = 1000000;
+    private static final int CANCEL_CHECK_MASK = 0xFFFF;
+
+    private final int slice;
+
+    public FactorialCalculation()
+    {
+        this(DEFAULT_SLICE);
+    }
+
+    /**
+     * Constructor for a FactorialCalculation with a custom time slice.
+     * @param slice number of multiplications a Task may perform before yielding
+     */
+    public FactorialCalculation(int slice)
+    {
+        this.slice = slice;
+    }
+
+    /**
+     * Calculates the factorial of the given value stored in the Task parameter.
+     * The calculation resumes from the Task's current index and partial product,
+     * and stops once the slice has been used up.
+     * @param task
+     */
+    @Override
+    public void processStep(Task task)
+    {
+        long factorial = task.getValue();
+        int i = task.getCurrent();
+        int end = task.getFactorial();
+
+        for(int steps = 0; i <= end && steps < slice; ++i, ++steps)
+        {
+            // check for cancellation every so often during long calculations
+            if((steps & CANCEL_CHECK_MASK) == 0 && task.isAbandoned())
+            {
+                break;
+            }
+
+            factorial *= i;
+        }
+
+        task.setCurrent(i);
+        task.setValue(factorial);
+    }
+
+    /**
+     * A Task is finished once every number up to n has been multiplied in, or
+     * once it has been abandoned.
+     * @param task to check
+     * @return whether the factorial is complete
+     */
+    @Override
+    public boolean isFinished(Task task)
+    {
+        return task.getCurrent() > task.getFactorial() || task.isAbandoned();
+    }
+
+    /**
+     * Tasks which have not been started and fit in one slice are batched, as
+     * the batch variant calculates each factorial to the end.
+     * @param task to check
+     * @return whether the task can go in a TaskBatch
+     */
+    @Override
+    public boolean canBatch(Task task)
+    {
+        return task.getCurrent() == 1 && task.getFactorial() <= slice;
+    }
+
+    /**
+     * Calculates the factorial of every entry of a TaskBatch without creating
+     * any Task objects. When the entries are in ascending order of n, each
+     * factorial carries on from the previous one instead of starting again
+     * from 1.
+     * @param batch of tasks to calculate
+     */
+    @Override
+    public void processBatch(TaskBatch batch)
+    {
+        int previousN = 1;
+        long previous = 1;
+
+        for(int i = 0; i < batch.size(); ++i)
+        {
+            int n = batch.getFactorial(i);
+            if(n < previousN)
+            {
+                previousN = 1;
+                previous = 1;
+            }
+
+            for(int j = previousN + 1; j <= n; ++j)
+            {
+                previous *= j;
+            }
+
+            previousN = n;
+            batch.setValue(i, previous);
+        }
+    }
+}
@@ -7,27 +7,74 @@ import java.util.List;
 /**
  * The FactorialWorker is an extension of the Worker class, it takes in the number of threads 
  * and list of notification queue and it  then send to the super class.
+ * The calculation itself is done by a FactorialCalculation.
  */
 public class FactorialWorker extends Worker
 {
+    // Number of multiplications performed before a Task yields its thread
+    public static final int DEFAULT_SLICE = FactorialCalculation.DEFAULT_SLICE;
+    
+    private final FactorialCalculation calculation;
+    
     public FactorialWorker(int num_threads, List<NotificationQueue<Task>> output_queues)
+    {
+        this(num_threads, output_queues, DEFAULT_SLICE);
+    }
+    
+    /**
+     * Constructor for a FactorialWorker with a custom time slice.
+     * @param num_threads to create in Thread pool
+     * @param output_queues to output processed tasks to.
+     * @param slice number of multiplications a Task may perform before yielding
+     */
+    public FactorialWorker(int num_threads, List<NotificationQueue<Task>> output_queues, int slice)
     {
         super(num_threads, output_queues);
+        this.calculation = new FactorialCalculation(slice);
     }
 
     /**
-     * Calculates the factorial of the given value stored in the Task parameter. 
+     * Calculates the factorial of the given value stored in the Task parameter,
+     * for up to one time slice.
      * @param task 
      */
     @Override
     public void processStep(Task task)
     {
-        long factorial = task.getValue();
-        for(int i = 0; i < task.getFactorial(); ++i)
-        {
-            factorial *= (i + 1);
-        }
-        
-        task.setValue(factorial);
+        calculation.processStep(task);
+    }
+    
+    /**
+     * Batch variant of processStep, calculating the factorial of every entry of a
+     * TaskBatch without creating any Task objects.
+     * @param batch of tasks to calculate
+     */
+    @Override
+    public void processBatch(TaskBatch batch)
+    {
+        calculation.processBatch(batch);
+    }
+    
+    /**
+     * A Task is finished once every number up to n has been multiplied in, or
+     * once it has been abandoned.
+     * @param task to check
+     * @return whether the factorial is complete
+     */
+    @Override
+    protected boolean isFinished(Task task)
+    {
+        return calculation.isFinished(task);
+    }
+    
+    /**
+     * Tasks which have not been started and fit in one slice are batched.
+     * @param task which has been claimed
+     * @return whether the task can go in a TaskBatch
+     */
+    @Override
+    protected boolean canBatch(Task task)
+    {
+        return calculation.canBatch(task);
     }
 }
\ No newline at end of file
@@ -0,0 +1,275 @@
+/**
+ * @author Waldo & Penzen
+ */
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.function.Supplier;
+
+/**
+ * A FairQueue object shares a Worker between client sessions, so that one client
+ * submitting a large batch of Tasks cannot hold up every other client.
+ *
+ * Each session has its own sub-queue, and sessions are served by deficit round
+ * robin. When a session's turn comes it is credited with a quantum of cost,
+ * proportional to its weight, and its Tasks are served while its credit covers
+ * their estimated cost. The rest of its credit carries over to its next turn. A
+ * light session therefore waits at most one round behind a heavy one, whatever
+ * the heavy session's backlog.
+ *
+ * Sessions whose sub-queue empties are forgotten, so a session only keeps state
+ * while it has Tasks waiting.
+ */
+public class FairQueue extends AbstractQueue<Task>
+{
+    /**
+     * A Classifier interface which assigns each Task to a session.
+     */
+    public interface Classifier {
+        /**
+         * Session a Task belongs to.
+         * @param task to classify
+         * @return session key, or null for Tasks which belong to no session
+         */
+        public Object session(Task task);
+
+        /**
+         * Relative share of the Worker given to a session.
+         * @param session key returned by session
+         * @return weight of at least 1
+         */
+        public int weight(Object session);
+    }
+
+    // session key used for Tasks which belong to no session
+    private static final Object NONE = new Object();
+
+    private final Classifier classifier;
+    private final SchedulingQueue.CostEstimator estimator;
+    private final Supplier<Queue<Task>> factory;
+    private final long quantum;
+
+    private final Map<Object, Session> sessions = new HashMap<>();
+    // sessions with Tasks waiting, the session whose turn it is at the head
+    private final ArrayDeque<Session> active = new ArrayDeque<>();
+    private int size = 0;
+
+    /**
+     * Constructor for a FairQueue object.
+     * @param classifier assigning Tasks to sessions
+     * @param estimator used to predict the cost of each Task
+     * @param quantum cost credited to a session of weight 1 on each turn
+     * @param factory creating the sub-queue of each session
+     */
+    public FairQueue(Classifier classifier, SchedulingQueue.CostEstimator estimator, long quantum,
+            Supplier<Queue<Task>> factory)
+    {
+        this.classifier = classifier;
+        this.estimator = estimator;
+        this.quantum = quantum;
+        this.factory = factory;
+    }
+
+    @Override
+    public synchronized boolean offer(Task task)
+    {
+        Object key = classifier.session(task);
+        if(key == null)
+        {
+            key = NONE;
+        }
+
+        Session session = sessions.get(key);
+        if(session == null)
+        {
+            int weight = (key == NONE) ? 1 : Math.max(1, classifier.weight(key));
+            session = new Session(key, weight * quantum, factory.get());
+            sessions.put(key, session);
+            active.addLast(session);
+        }
+
+        session.queue.offer(task);
+        ++size;
+        return true;
+    }
+
+    @Override
+    public synchronized Task poll()
+    {
+        if(size == 0)
+        {
+            return null;
+        }
+
+        int turns = 0;
+        while(true)
+        {
+            Session session = active.peekFirst();
+            if(!session.credited)
+            {
+                session.deficit += session.quantum;
+                session.credited = true;
+            }
+
+            Task head = session.queue.peek();
+            long cost = cost(head);
+            if(session.deficit >= cost)
+            {
+                session.queue.poll();
+                session.deficit -= cost;
+                --size;
+
+                if(session.queue.isEmpty())
+                {
+                    // idle sessions do not save up credit
+                    active.pollFirst();
+                    sessions.remove(session.key);
+                }
+
+                return head;
+            }
+
+            // credit used up, next session's turn
+            session.credited = false;
+            active.addLast(active.pollFirst());
+
+            if(++turns >= active.size())
+            {
+                skipRounds();
+                turns = 0;
+            }
+        }
+    }
+
+    /**
+     * Internal helper method which, after a whole round in which no session
+     * could afford its next Task, credits every session with the rounds it
+     * would take for the first of them to afford it, rather than going round
+     * that many times.
+     */
+    private void skipRounds()
+    {
+        long rounds = Long.MAX_VALUE;
+        for(Session session : active)
+        {
+            long shortfall = cost(session.queue.peek()) - session.deficit - session.quantum;
+            rounds = Math.min(rounds, Math.max(0, (shortfall + session.quantum - 1) / session.quantum));
+        }
+
+        for(Session session : active)
+        {
+            session.deficit += rounds * session.quantum;
+        }
+    }
+
+    /**
+     * Internal helper method which estimates the cost of a Task.
+     */
+    private long cost(Task task)
+    {
+        return Math.max(1, estimator.cost(task));
+    }
+
+    @Override
+    public synchronized Task peek()
+    {
+        Session session = active.peekFirst();
+        return (session == null) ? null : session.queue.peek();
+    }
+
+    @Override
+    public synchronized int size()
+    {
+        return size;
+    }
+
+    /**
+     * Number of sessions with Tasks waiting.
+     * @return active session count
+     */
+    public synchronized int getSessionCount()
+    {
+        return active.size();
+    }
+
+    @Override
+    public synchronized Iterator<Task> iterator()
+    {
+        List<Task> tasks = new ArrayList<>(size);
+        for(Session session : active)
+        {
+            tasks.addAll(session.queue);
+        }
+
+        return tasks.iterator();
+    }
+
+    /**
+     * A Session holds the sub-queue and the credit of one session.
+     */
+    private static class Session
+    {
+        private final Object key;
+        private final long quantum;
+        private final Queue<Task> queue;
+        private long deficit = 0;
+        private boolean credited = false;
+
+        public Session(Object key, long quantum, Queue<Task> queue)
+        {
+            this.key = key;
+            this.quantum = quantum;
+            this.queue = queue;
+        }
+    }
+
+    /**
+     * Object testing method.
+     * Demonstrates the functionality of a FairQueue Object
+     * @param args
+     */
+    public static void main(String... args)
+    {
+        // sessions are given by task identifier / 1000, session 1 has double weight
+        FairQueue queue = new FairQueue(new Classifier() {
+            @Override
+            public Object session(Task task) {
+                return task.getIdentifier() / 1000;
+            }
+
+            @Override
+            public int weight(Object session) {
+                return ((Integer) session == 1) ? 2 : 1;
+            }
+        }, SchedulingQueue.BY_FACTORIAL, 10, new Supplier<Queue<Task>>() {
+            @Override
+            public Queue<Task> get() {
+                return new ArrayDeque<>();
+            }
+        });
+
+        // a heavy session with 20 tasks, then two light ones
+        for(int i = 0; i < 20; ++i)
+        {
+            queue.add(new Task(i, 10));
+        }
+        queue.add(new Task(1000, 10));
+        queue.add(new Task(1001, 10));
+        queue.add(new Task(2000, 10));
+        queue.add(new Task(3000, 1000));
+
+        Task task;
+        StringBuilder order = new StringBuilder();
+        while((task = queue.poll()) != null)
+        {
+            order.append(task.getIdentifier()).append(' ');
+        }
+        System.out.println("Served: " + order);
+    }
+}
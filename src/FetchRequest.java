@@ -0,0 +1,52 @@
+/**
+ * @author Waldo & Penzen
+ */
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A FetchRequest is sent by a Client over the same stream as its Tasks to name
+ * its session, and to ask for the results of Tasks in that session to be sent
+ * again, such as after its output connection has dropped.
+ *
+ * A FetchRequest with no identifiers only names the session, so that results of
+ * the Tasks which follow it are kept in the ProcessServer's ResultMailbox.
+ */
+public class FetchRequest implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+    
+    private final long session;
+    private final int[] identifiers;
+    
+    public FetchRequest(long session, int... identifiers)
+    {
+        this.session = session;
+        this.identifiers = identifiers;
+    }
+    
+    /**
+     * Session chosen by the Client, the same on every connection it makes.
+     * @return session key
+     */
+    public long getSession()
+    {
+        return this.session;
+    }
+    
+    /**
+     * Identifiers of the Tasks whose results are wanted.
+     * @return task identifiers, possibly none
+     */
+    public int[] getIdentifiers()
+    {
+        return this.identifiers;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return ("FetchRequest("+this.getSession()+", "+Arrays.toString(this.getIdentifiers())+")");
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * @author Waldo & Penzen
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * A HashRing object maps keys onto a set of nodes using consistent hashing.
+ * Each node is placed on the ring at several points (virtual nodes) and a key
+ * belongs to the first node found clockwise from the key's hash. When a node
+ * joins or leaves, only the keys next to its points change owner.
+ */
+public class HashRing
+{
+    public static final int DEFAULT_REPLICAS = 64;
+
+    private final TreeMap<Integer, String> ring = new TreeMap<>();
+    private final List<String> nodes = new ArrayList<>();
+    private final int replicas;
+
+    /**
+     * Constructor for an empty HashRing using the default number of virtual nodes.
+     */
+    public HashRing()
+    {
+        this(DEFAULT_REPLICAS);
+    }
+
+    /**
+     * Constructor for an empty HashRing.
+     * @param replicas number of virtual nodes per node
+     */
+    public HashRing(int replicas)
+    {
+        this.replicas = replicas;
+    }
+
+    /**
+     * Adds a node to the ring.
+     * @param node identifier
+     * @return whether the node was not already on the ring
+     */
+    public synchronized boolean add(String node)
+    {
+        if(nodes.contains(node))
+        {
+            return false;
+        }
+
+        nodes.add(node);
+        for(int i = 0; i < replicas; ++i)
+        {
+            ring.put(hash(node + "#" + i), node);
+        }
+
+        return true;
+    }
+
+    /**
+     * Removes a node from the ring.
+     * @param node identifier
+     * @return whether the node was on the ring
+     */
+    public synchronized boolean remove(String node)
+    {
+        if(!nodes.remove(node))
+        {
+            return false;
+        }
+
+        for(int i = 0; i < replicas; ++i)
+        {
+            ring.remove(hash(node + "#" + i), node);
+        }
+
+        return true;
+    }
+
+    /**
+     * Finds the node which owns a key.
+     * @param key to look up
+     * @return owning node, or null if the ring is empty
+     */
+    public synchronized String owner(int key)
+    {
+        if(ring.isEmpty())
+        {
+            return null;
+        }
+
+        SortedMap<Integer, String> tail = ring.tailMap(mix(key));
+        return tail.isEmpty() ? ring.firstEntry().getValue() : tail.get(tail.firstKey());
+    }
+
+    /**
+     * Returns a copy of the nodes currently on the ring.
+     * @return node identifiers
+     */
+    public synchronized List<String> getNodes()
+    {
+        return new ArrayList<>(nodes);
+    }
+
+    /**
+     * Internal helper method which hashes a string onto the ring.
+     */
+    private static int hash(String s)
+    {
+        return mix(s.hashCode());
+    }
+
+    /**
+     * Internal helper method which spreads the bits of a value so that
+     * consecutive keys land far apart on the ring (MurmurHash3 finalizer).
+     */
+    private static int mix(int h)
+    {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * Object testing method.
+     * Demonstrates the functionality of a HashRing Object
+     * @param args
+     */
+    public static void main(String... args)
+    {
+        HashRing ring = new HashRing();
+        ring.add("localhost:5000");
+        ring.add("localhost:5001");
+        ring.add("localhost:5002");
+
+        Map<String, Integer> counts = new TreeMap<>();
+        String[] before = new String[10000];
+        for(int n = 0; n < before.length; ++n)
+        {
+            String owner = ring.owner(n);
+            before[n] = owner;
+            counts.merge(owner, 1, Integer::sum);
+        }
+        System.out.println("Keys per node: " + counts);
+
+        ring.remove("localhost:5001");
+
+        int moved = 0;
+        for(int n = 0; n < before.length; ++n)
+        {
+            if(!ring.owner(n).equals(before[n]))
+            {
+                ++moved;
+            }
+        }
+        System.out.println("Keys moved after removing a node: " + moved + " (only its own keys)");
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * @author Waldo & Penzen
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A LoadShedder object turns new Tasks away while the pipeline is overloaded,
+ * so that the Tasks already accepted still finish in good time instead of every
+ * Task waiting longer and longer.
+ *
+ * The pipeline counts as overloaded while any watched Worker's Tasks are waiting
+ * longer than the maximum wait on average, or while any watched queue or Worker
+ * holds more than the maximum depth of waiting Tasks. Turned away Tasks are sent
+ * back to the client as rejected with the reason BUSY, and may be resubmitted
+ * later.
+ */
+public class LoadShedder
+{
+    public static final String BUSY = "server busy";
+
+    private final long maxWaitMillis;
+    private final int maxDepth;
+    private final List<Queue<?>> queues = new ArrayList<>();
+    private final List<Worker> stages = new ArrayList<>();
+    private final AtomicLong shed = new AtomicLong();
+
+    /**
+     * Constructor for a LoadShedder object.
+     * @param maxWaitMillis average queue wait above which Tasks are shed, 0 for no limit
+     * @param maxDepth number of waiting Tasks above which Tasks are shed, 0 for no limit
+     */
+    public LoadShedder(long maxWaitMillis, int maxDepth)
+    {
+        this.maxWaitMillis = maxWaitMillis;
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Adds a queue whose depth is limited.
+     * @param queue to watch
+     */
+    public void watch(Queue<?> queue)
+    {
+        queues.add(queue);
+    }
+
+    /**
+     * Adds a Worker whose input queue wait and depth are limited.
+     * @param worker to watch
+     */
+    public void watch(Worker worker)
+    {
+        stages.add(worker);
+    }
+
+    /**
+     * Decides whether a newly submitted Task should be turned away.
+     * @return whether the pipeline is overloaded
+     */
+    public boolean shouldShed()
+    {
+        for(Worker worker : stages)
+        {
+            if((maxWaitMillis > 0 && worker.getQueueDelay() > maxWaitMillis)
+                    || (maxDepth > 0 && worker.backlog() > maxDepth))
+            {
+                shed.incrementAndGet();
+                return true;
+            }
+        }
+
+        for(Queue<?> queue : queues)
+        {
+            if(maxDepth > 0 && queue.size() > maxDepth)
+            {
+                shed.incrementAndGet();
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Number of Tasks turned away so far.
+     * @return shed task count
+     */
+    public long getShed()
+    {
+        return shed.get();
+    }
+}
@@ -0,0 +1,272 @@
+/**
+ * @author Waldo & Penzen
+ */
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log is an asynchronous, level-gated logger for the processing threads, in
+ * place of System.out which makes every thread contend on one lock and wait on
+ * console I/O.
+ *
+ * A message below the current level is dropped by a single field read before
+ * anything is built. A message which passes is not formatted by the calling
+ * thread: its template and arguments are copied into a preallocated slot of a
+ * ring buffer, claimed with one compare-and-set, and a background writer thread
+ * formats and prints it. If the ring is full the message is dropped and counted
+ * rather than making the caller wait.
+ *
+ * Templates use {} for each argument, e.g.
+ *      Log.debug("{} [{}] working!", name, thread);
+ */
+public final class Log
+{
+    /**
+     * Enumeration of log levels, from the most to the least important.
+     */
+    public enum Level {
+        OFF,
+        ERROR,
+        WARN,
+        INFO,
+        DEBUG
+    }
+
+    private static final int CAPACITY = 8192;
+    private static final int MASK = CAPACITY - 1;
+    private static final long IDLE_PARK_NANOS = 1000000;
+
+    // ordinal of the most detailed level which is logged
+    private static volatile int level = Level.INFO.ordinal();
+
+    private static final Entry[] entries = new Entry[CAPACITY];
+    // sequence number published in each slot once it has been filled
+    private static final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong claimed = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static volatile long consumed = 0;
+
+    private static final PrintStream out = System.out;
+    private static final PrintStream err = System.err;
+
+    static {
+        for(int i = 0; i < CAPACITY; ++i)
+        {
+            entries[i] = new Entry();
+            published.set(i, -1);
+        }
+
+        Thread writer = new Thread(new Writer(), "Log Writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private Log()
+    {
+    }
+
+    /**
+     * Sets the most detailed level which is logged.
+     * @param newLevel to log at, OFF for a quiet server
+     */
+    public static void setLevel(Level newLevel)
+    {
+        level = newLevel.ordinal();
+    }
+
+    /**
+     * Whether messages of a level are logged, for callers which need to do some
+     * work to prepare a message.
+     * @param messageLevel to check
+     * @return whether the level is logged
+     */
+    public static boolean isEnabled(Level messageLevel)
+    {
+        return messageLevel.ordinal() <= level;
+    }
+
+    /**
+     * Number of messages dropped because the ring buffer was full.
+     * @return dropped message count
+     */
+    public static long getDropped()
+    {
+        return dropped.get();
+    }
+
+    public static void error(String template, Object arg0, Object arg1)
+    {
+        log(Level.ERROR, template, arg0, arg1);
+    }
+
+    public static void error(String template, Object arg0)
+    {
+        log(Level.ERROR, template, arg0, null);
+    }
+
+    public static void error(String message)
+    {
+        log(Level.ERROR, message, null, null);
+    }
+
+    public static void warn(String template, Object arg0, Object arg1)
+    {
+        log(Level.WARN, template, arg0, arg1);
+    }
+
+    public static void warn(String template, Object arg0)
+    {
+        log(Level.WARN, template, arg0, null);
+    }
+
+    public static void warn(String message)
+    {
+        log(Level.WARN, message, null, null);
+    }
+
+    public static void info(String template, Object arg0, Object arg1)
+    {
+        log(Level.INFO, template, arg0, arg1);
+    }
+
+    public static void info(String template, Object arg0)
+    {
+        log(Level.INFO, template, arg0, null);
+    }
+
+    public static void info(String message)
+    {
+        log(Level.INFO, message, null, null);
+    }
+
+    public static void debug(String template, Object arg0, Object arg1)
+    {
+        log(Level.DEBUG, template, arg0, arg1);
+    }
+
+    public static void debug(String template, Object arg0)
+    {
+        log(Level.DEBUG, template, arg0, null);
+    }
+
+    public static void debug(String message)
+    {
+        log(Level.DEBUG, message, null, null);
+    }
+
+    /**
+     * Logs a message if its level is enabled.
+     * @param messageLevel of the message
+     * @param template of the message, with {} for each argument
+     * @param arg0 first argument, may be null
+     * @param arg1 second argument, may be null
+     */
+    public static void log(Level messageLevel, String template, Object arg0, Object arg1)
+    {
+        if(messageLevel.ordinal() > level)
+        {
+            return;
+        }
+
+        // claim a slot, or drop the message if the writer has fallen a ring behind
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if(sequence - consumed >= CAPACITY)
+            {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while(!claimed.compareAndSet(sequence, sequence + 1));
+
+        int index = (int) (sequence & MASK);
+        Entry entry = entries[index];
+        entry.level = messageLevel;
+        entry.template = template;
+        entry.arg0 = arg0;
+        entry.arg1 = arg1;
+
+        published.set(index, sequence);
+    }
+
+    /**
+     * Internal helper method which writes a message with its arguments filled in.
+     */
+    private static void format(StringBuilder line, Entry entry)
+    {
+        String template = entry.template;
+        int argument = 0;
+        int start = 0;
+        int placeholder;
+
+        while((placeholder = template.indexOf("{}", start)) >= 0)
+        {
+            line.append(template, start, placeholder);
+            line.append((argument == 0) ? entry.arg0 : (argument == 1) ? entry.arg1 : "{}");
+            ++argument;
+            start = placeholder + 2;
+        }
+        line.append(template, start, template.length());
+    }
+
+    /**
+     * An Entry is one preallocated slot of the ring buffer.
+     */
+    private static class Entry
+    {
+        private Level level;
+        private String template;
+        private Object arg0;
+        private Object arg1;
+    }
+
+    /**
+     * The Writer formats and prints messages in the order they were logged,
+     * parking briefly whenever the ring buffer is empty.
+     */
+    private static class Writer implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            StringBuilder line = new StringBuilder(256);
+            long reportedDrops = 0;
+
+            while(true)
+            {
+                long sequence = consumed;
+                int index = (int) (sequence & MASK);
+
+                if(published.get(index) != sequence)
+                {
+                    out.flush();
+
+                    long drops = dropped.get();
+                    if(drops != reportedDrops)
+                    {
+                        err.println("[Log] " + (drops - reportedDrops) + " message(s) dropped");
+                        reportedDrops = drops;
+                    }
+
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    continue;
+                }
+
+                Entry entry = entries[index];
+                line.setLength(0);
+                format(line, entry);
+
+                PrintStream stream = (entry.level == Level.ERROR || entry.level == Level.WARN) ? err : out;
+                stream.println(line);
+
+                // release the arguments before handing the slot back
+                entry.arg0 = null;
+                entry.arg1 = null;
+                consumed = sequence + 1;
+            }
+        }
+    }
+}
@@ -3,13 +3,23 @@
  */
 
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * A NotificationQueue object decorates an AbstractQueue which implements the 
  * Observer Pattern to notify any listening objects.
+ * 
+ * A NotificationQueue is also a Flow.Publisher. Listeners are passed every
+ * element as soon as it is taken, but Subscribers are only passed as many
+ * elements as they have requested. While any Subscriber has no outstanding
+ * demand, elements are left in the decorated queue, so a bounded queue fills up
+ * and its producers wait rather than the Subscriber being overrun.
  */
-public class NotificationQueue<E> extends AbstractQueue<E>
+public class NotificationQueue<E> extends AbstractQueue<E> implements Flow.Publisher<E>
 {
     /**
      * A Listener interface which contains a callable ping method.
@@ -24,17 +34,33 @@ public class NotificationQueue<E> extends AbstractQueue<E>
     }
     
     protected Queue<E> queue;
-    private final List<Listener<E>> listeners = new ArrayList<>();
-    private boolean running = true;
+    // identifies the queue in recorded TaskEvents
+    private final String name;
+    // copy-on-write, listeners come and go while elements are being passed on
+    private final List<Listener<E>> listeners = new CopyOnWriteArrayList<>();
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private volatile Thread updater;
+    private volatile boolean running = true;
 
     /**
      * Constructor for a NotificationQueue object.
      * @param queue to decorate.
      */
     public NotificationQueue(final Queue<E> queue)
+    {
+        this(queue, "queue");
+    }
+    
+    /**
+     * Constructor for a named NotificationQueue object.
+     * @param queue to decorate.
+     * @param name identifying the queue in recorded TaskEvents
+     */
+    public NotificationQueue(final Queue<E> queue, String name)
     {
         super();
         this.queue = queue;
+        this.name = name;
 
         // Start internal thread
         this.startUpdater();
@@ -45,8 +71,8 @@ public class NotificationQueue<E> extends AbstractQueue<E>
      */
     private final void startUpdater()
     {
-        Thread thread = new Thread(new InternalUpdater());
-        thread.start();
+        updater = new Thread(new InternalUpdater());
+        updater.start();
     }
     
     /**
@@ -81,11 +107,84 @@ public class NotificationQueue<E> extends AbstractQueue<E>
         }
     }
 
+    /**
+     * Subscribes a Subscriber, which is passed elements as it requests them.
+     * @param subscriber to add
+     */
+    @Override
+    public void subscribe(Flow.Subscriber<? super E> subscriber)
+    {
+        Subscription subscription = new Subscription(subscriber);
+        subscriptions.add(subscription);
+        subscriber.onSubscribe(subscription);
+    }
+    
+    /**
+     * Internal helper method which checks whether every Subscriber has asked for
+     * another element.
+     * @return whether the next element may be taken
+     */
+    private boolean hasDemand()
+    {
+        for(Subscription subscription : subscriptions)
+        {
+            if(subscription.demand.get() <= 0)
+            {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Internal helper method which passes an element to every Subscriber,
+     * using up one of each Subscriber's requested elements.
+     * @param obj to pass through
+     */
+    private void publish(E obj)
+    {
+        for(Subscription subscription : subscriptions)
+        {
+            subscription.demand.decrementAndGet();
+            subscription.subscriber.onNext(obj);
+        }
+    }
+
     @Override
     public boolean add(E e) {
+        if(e instanceof Task)
+        {
+            TaskEvent.enqueued((Task) e, name);
+        }
         return this.queue.add(e);
     }
 
+    /**
+     * Adds a batch of elements, in a single claim when the decorated queue is a
+     * RingBufferQueue with room for the whole batch.
+     * @param batch elements to add
+     */
+    public void addBatch(List<? extends E> batch)
+    {
+        for(E e : batch)
+        {
+            if(e instanceof Task)
+            {
+                TaskEvent.enqueued((Task) e, name);
+            }
+        }
+        
+        if(queue instanceof RingBufferQueue && batch.size() <= ((RingBufferQueue<E>) queue).capacity())
+        {
+            ((RingBufferQueue<E>) queue).addBatch(batch);
+        }
+        else
+        {
+            this.queue.addAll(batch);
+        }
+    }
+
     @Override
     public Iterator<E> iterator() {
         return this.queue.iterator();
@@ -98,6 +197,10 @@ public class NotificationQueue<E> extends AbstractQueue<E>
 
     @Override
     public boolean offer(E arg0) {
+        if(arg0 instanceof Task)
+        {
+            TaskEvent.enqueued((Task) arg0, name);
+        }
         return this.queue.offer(arg0);
     }
 
@@ -117,12 +220,67 @@ public class NotificationQueue<E> extends AbstractQueue<E>
     public void requestStop()
     {
         this.running = false;
+        
+        for(Subscription subscription : subscriptions)
+        {
+            subscription.cancel();
+            subscription.subscriber.onComplete();
+        }
+    }
+    
+    /**
+     * A Subscription tracks how many more elements one Subscriber has asked for.
+     */
+    private class Subscription implements Flow.Subscription
+    {
+        private final Flow.Subscriber<? super E> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        
+        public Subscription(Flow.Subscriber<? super E> subscriber)
+        {
+            this.subscriber = subscriber;
+        }
+        
+        @Override
+        public void request(long n)
+        {
+            if(n <= 0)
+            {
+                cancel();
+                subscriber.onError(new IllegalArgumentException("non-positive request: " + n));
+                return;
+            }
+            
+            long previous;
+            long next;
+            do {
+                previous = demand.get();
+                // capped, as Long.MAX_VALUE means unbounded
+                next = (previous + n < 0) ? Long.MAX_VALUE : previous + n;
+            } while(!demand.compareAndSet(previous, next));
+            
+            if(previous <= 0)
+            {
+                // wake the updater in case it is waiting on this Subscriber
+                LockSupport.unpark(updater);
+            }
+        }
+        
+        @Override
+        public void cancel()
+        {
+            if(subscriptions.remove(this))
+            {
+                LockSupport.unpark(updater);
+            }
+        }
     }
     
     /**
      * This InternalUpdater will frequently check to see whether the decorated
-     * queue is not empty. If not empty, the next element in the queue is passed
-     * to all Listeners via notifyAll.
+     * queue is not empty. If not empty, every element in the queue is passed
+     * to all Listeners via notifyAll, and to all Subscribers for as long as
+     * they have demand.
      */
     private class InternalUpdater implements Runnable {
 
@@ -130,16 +288,21 @@ public class NotificationQueue<E> extends AbstractQueue<E>
         public void run() {
             while(running)
             {
-                if(!queue.isEmpty())
+                // pass on everything that is ready in one go rather than one
+                // element per wake up
+                E obj;
+                while(hasDemand() && (obj = NotificationQueue.this.poll()) != null)
                 {
-                    NotificationQueue.this.notifyAll(NotificationQueue.this.poll());                    
+                    if(obj instanceof Task)
+                    {
+                        TaskEvent.dequeued((Task) obj, name);
+                    }
+                    NotificationQueue.this.notifyAll(obj);
+                    NotificationQueue.this.publish(obj);
                 }
                 
-                try {
-                    Thread.sleep(50);
-                } catch (InterruptedException ex) {
-                    /* Ignored */
-                }
+                // woken early when a Subscriber's demand is renewed
+                LockSupport.parkNanos(50000000);
                 
             }
         }        
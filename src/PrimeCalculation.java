@@ -0,0 +1,114 @@
+/**
+ * @author Waldo & Penzen
+ */
+
+/**
+ * The PrimeCalculation checks whether a Task's calculated factorial is a
+ * Factorial Prime (n - 1) and (n + 1), by trial division.
+ */
+public class PrimeCalculation implements Calculation
+{
+    private static final long CANCEL_CHECK_MASK = 0xFFFFF;
+    // largest factorial checked in a TaskBatch, larger checks may need cancelling part way
+    private static final long BATCH_LIMIT = 1L << 22;
+
+    /**
+     * Checks if a Task's calculated Factorial is a Factorial Prime (n - 1) and (n + 1).
+     * A Task abandoned part way through the check is cancelled rather than given
+     * a result, as Worker.skip would, so only a completed check says not prime.
+     * @param task
+     */
+    @Override
+    public void processStep(Task task)
+    {
+        boolean isPrime = false;
+
+        if(checkForPrime(task, task.getValue() + 1))
+        {
+            isPrime = true;
+        }
+        else if(!task.isAbandoned())
+        {
+            isPrime = checkForPrime(task, task.getValue() - 1);
+        }
+
+        // abandonment is permanent, so this catches a check that gave up early
+        if(task.isAbandoned())
+        {
+            task.cancel();
+            return;
+        }
+
+        task.setPrime(isPrime);
+    }
+
+    /**
+     * The check is done in a single step.
+     * @param task to check
+     * @return true
+     */
+    @Override
+    public boolean isFinished(Task task)
+    {
+        return true;
+    }
+
+    /**
+     * Only Tasks whose check is short are batched, as a check in a TaskBatch
+     * cannot give up when its Task is abandoned.
+     * @param task to check
+     * @return whether the task can go in a TaskBatch
+     */
+    @Override
+    public boolean canBatch(Task task)
+    {
+        return task.getValue() > -BATCH_LIMIT && task.getValue() < BATCH_LIMIT;
+    }
+
+    /**
+     * Checks every entry of a TaskBatch for a Factorial Prime (n - 1) and (n + 1)
+     * without creating any Task objects.
+     * @param batch of calculated factorials
+     */
+    @Override
+    public void processBatch(TaskBatch batch)
+    {
+        for(int i = 0; i < batch.size(); ++i)
+        {
+            long value = batch.getValue(i);
+            batch.setPrime(i, checkForPrime(null, value + 1) || checkForPrime(null, value - 1));
+        }
+    }
+
+    /**
+     * Trial division primality check. Periodically checks whether the Task has
+     * been abandoned, giving up early if so.
+     * @param task being processed, or null if it cannot be cancelled
+     * @param inputNumber to check
+     * @return whether inputNumber is prime, false if the task was abandoned first
+     */
+    private static boolean checkForPrime(Task task, long inputNumber)
+    {
+        if(inputNumber <= 1)
+        {
+            return false;
+        }
+        else
+        {
+            for (long i = 2; i <= inputNumber/2; i++)
+            {
+                if ((inputNumber % i) == 0)
+                {
+                    return false;
+                }
+
+                if ((i & CANCEL_CHECK_MASK) == 0 && task != null && task.isAbandoned())
+                {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+}
@@ -7,9 +7,12 @@ import java.util.List;
 /**
  * The PrimeWorker is an extension of the Worker class, it takes in the number of threads 
  * and list of notification queue and it  then send to the super class.
+ * The check itself is done by a PrimeCalculation.
  */
 public class PrimeWorker extends Worker
 {
+    private final PrimeCalculation calculation = new PrimeCalculation();
+    
     public PrimeWorker(int num_threads, List<NotificationQueue<Task>> output_queues)
     {
         super(num_threads, output_queues);
@@ -22,37 +25,28 @@ public class PrimeWorker extends Worker
     @Override
     public void processStep(Task task) 
     {
-        boolean isPrime = false;
-
-        if(checkForPrime(task.getValue() + 1))
-        {
-            isPrime = true;
-        }
-        else
-        {
-            isPrime = checkForPrime(task.getValue() - 1);
-        }
-
-        task.setPrime(isPrime);           
+        calculation.processStep(task);
     }        
     
-    private boolean checkForPrime(long inputNumber)
+    /**
+     * Batch variant of processStep, checking every entry of a TaskBatch for a
+     * Factorial Prime (n - 1) and (n + 1) without creating any Task objects.
+     * @param batch of calculated factorials
+     */
+    @Override
+    public void processBatch(TaskBatch batch)
     {
-        if(inputNumber <= 1) 
-        {
-            return false;
-        }
-        else
-        {
-            for (long i = 2; i <= inputNumber/2; i++) 
-            {
-                if ((inputNumber % i) == 0)
-                {
-                    return false;
-                }
-            }
-
-            return true;
-        }
+        calculation.processBatch(batch);
+    }
+    
+    /**
+     * Only Tasks whose check is short are batched.
+     * @param task which has been claimed
+     * @return whether the task can go in a TaskBatch
+     */
+    @Override
+    protected boolean canBatch(Task task)
+    {
+        return calculation.canBatch(task);
     }
 }
@@ -2,15 +2,30 @@
  * @author Waldo & Penzen
  */
 
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.io.ObjectInputStream;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 /*
     Process Diagram
@@ -36,9 +51,17 @@ import java.util.concurrent.LinkedBlockingQueue;
 public class ProcessServer {    
     private static final int DISPATCHER_PORT = 420;
     private static final int RECEIVER_PORT = 422;
+    public static final int WORKER_PORT = 424;
     
-    private static List<Worker> workers = new ArrayList();
-    private List<InputHandler> clients = new ArrayList();
+    private final int dispatcherPort;
+    private final int receiverPort;
+    private static final int STEP2_CAPACITY = 4096;
+    // threads per pipeline stage
+    private static final int STAGE_THREADS = 10;
+    
+    // copy-on-write, connections are added and removed while other threads iterate
+    private static List<Worker> workers = new CopyOnWriteArrayList<>();
+    private List<InputHandler> clients = new CopyOnWriteArrayList<>();
         
     private ServerSocket dispatcherSocket;
     private ServerSocket receiverSocket;
@@ -49,9 +72,257 @@ public class ProcessServer {
     
     private List<NotificationQueue<Task>> input;
     private List<NotificationQueue<Task>> output;
+    
+    private TaskLog intakeLog;
+    private ClusterRouter cluster;
+    private WorkerGateway gateway;
+    private ResultCache cache;
+    private ResultMailbox mailbox;
+    // cancels the tasks of a named session which has not reconnected in time
+    private ScheduledExecutorService detachedExpiry;
+    private AdmissionControl admission;
+    private ConnectionManager connections;
+    
+    private long heartbeatMillis = ConnectionManager.DEFAULT_HEARTBEAT;
+    private long idleTimeoutMillis = 0;
+    private LoadShedder shedder;
+    private RangeAggregator ranges;
+    
+    private Worker factorialWorker;
+    private Worker primeWorker;
+    
+    // non-null once the async engine is enabled
+    private Executor factorialExecutor;
+    private Executor primeExecutor;
+    private Executor deliveryExecutor;
+    private AsyncPipeline pipeline;
+    
+    private long shedWaitMillis;
+    private int shedDepth;
+    
+    private File spillDirectory;
+    private int spillThreshold;
+    
+    private boolean batches = false;
+    
+    // client host -> weight, non-null once fair queuing is enabled
+    private Map<String, Integer> sessionWeights;
+    
+    private int outboundCapacity = ClientOutputWorker.DEFAULT_CAPACITY;
+    private ClientOutputWorker.OverflowPolicy overflowPolicy = ClientOutputWorker.DEFAULT_POLICY;
+    
+    // task serial -> InputHandler which submitted it, for tasks still in the pipeline
+    private final Map<Long, InputHandler> owners = new ConcurrentHashMap<>();
+    // mailbox session -> disconnected InputHandler whose tasks are kept running
+    private final Map<Long, InputHandler> detached = new ConcurrentHashMap<>();
 
     public ProcessServer()
     {
+        this(DISPATCHER_PORT, RECEIVER_PORT);
+    }
+    
+    /**
+     * Constructor for a ProcessServer listening on custom ports, such as when
+     * running several cluster nodes on one machine.
+     * @param dispatcherPort for outgoing results
+     * @param receiverPort for incoming tasks
+     */
+    public ProcessServer(int dispatcherPort, int receiverPort)
+    {
+        this.dispatcherPort = dispatcherPort;
+        this.receiverPort = receiverPort;
+    }
+    
+    /**
+     * Configures how client connections are monitored. Every output connection is
+     * sent a heartbeat when nothing else has been sent within the interval, so a
+     * disconnected client is noticed promptly. Input connections which have
+     * nothing outstanding and send nothing for the idle timeout are closed.
+     * Must be called before startServer().
+     * @param heartbeatMillis interval between heartbeats
+     * @param idleTimeoutMillis time a connection may be idle before it is closed, 0 for no limit
+     */
+    public void setConnectionTimeouts(long heartbeatMillis, long idleTimeoutMillis)
+    {
+        this.heartbeatMillis = heartbeatMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+    
+    /**
+     * Enables load shedding. While Tasks wait longer than maxWaitMillis on average
+     * in front of a pipeline stage, or more than maxDepth Tasks are waiting, new
+     * Tasks are sent straight back to their client as rejected with the reason
+     * LoadShedder.BUSY, so that accepted Tasks are not held up further.
+     * Must be called before startServer().
+     * @param maxWaitMillis average queue wait above which Tasks are shed, 0 for no limit
+     * @param maxDepth number of waiting Tasks above which Tasks are shed, 0 for no limit
+     */
+    public void enableLoadShedding(long maxWaitMillis, int maxDepth)
+    {
+        this.shedWaitMillis = maxWaitMillis;
+        this.shedDepth = maxDepth;
+    }
+    
+    /**
+     * Enables admission control. Every Task submitted is checked against the
+     * per-client and server-wide rate limits, and a Task over a limit is sent
+     * back to its client as rejected rather than entering the pipeline.
+     * Must be called before startServer().
+     * @param admission limits to apply
+     */
+    public void setAdmissionControl(AdmissionControl admission)
+    {
+        this.admission = admission;
+    }
+    
+    /**
+     * Enables the result cache. Tasks whose n has been computed before skip the
+     * pipeline, and the cache is snapshotted to a memory-mapped file so it is
+     * still warm after a restart.
+     * Must be called before startServer().
+     * @param path of the snapshot file
+     * @param intervalMillis between snapshots
+     * @throws IOException if an existing snapshot could not be mapped
+     */
+    public void enableResultCache(String path, long intervalMillis) throws IOException
+    {
+        this.cache = new ResultCache(path, intervalMillis);
+    }
+    
+    /**
+     * Enables the result mailbox. The results of Tasks submitted in a named
+     * session are kept for the time-to-live in a memory-mapped file, and a
+     * client which reconnects can fetch them by task identifier with a
+     * FetchRequest. Tasks in a named session also keep running if the client's
+     * connection drops, until the time-to-live passes without the session being
+     * named again.
+     * Must be called before startServer().
+     * @param path of the mailbox file
+     * @param ttlMillis how long results are kept
+     * @throws IOException if an existing mailbox could not be mapped
+     */
+    public void enableResultMailbox(String path, long ttlMillis) throws IOException
+    {
+        this.mailbox = new ResultMailbox(path, ttlMillis);
+        this.detachedExpiry = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Detached Session Expiry");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+    
+    /**
+     * Enables the worker gateway, letting RemoteWorker processes pull Tasks from
+     * the factorial and prime stages.
+     * Must be called before startServer().
+     * @param port to accept RemoteWorker connections on
+     * @param leaseMillis how long a RemoteWorker may hold Tasks before they are re-queued
+     */
+    public void enableWorkerGateway(int port, long leaseMillis)
+    {
+        this.gateway = new WorkerGateway(port, leaseMillis);
+    }
+    
+    /**
+     * Enables cluster mode. Tasks are routed by n to the node which owns them and
+     * results are returned to the node holding the client connection.
+     * Must be called before startServer().
+     * @param self identifier of this node as host:port, port being its cluster port
+     * @param members identifiers of the other nodes in the cluster
+     */
+    public void enableCluster(String self, List<String> members)
+    {
+        this.cluster = new ClusterRouter(self, members);
+    }
+    
+    /**
+     * Enables the durable intake log. Every accepted Task is recorded in a
+     * memory-mapped write-ahead log, and unfinished Tasks from a previous run are
+     * replayed into the pipeline when the server starts.
+     * Must be called before startServer().
+     * @param path of the log segment file
+     * @throws IOException if the log could not be opened
+     */
+    public void enableIntakeLog(String path) throws IOException
+    {
+        this.intakeLog = new TaskLog(path);
+    }
+    
+    /**
+     * Enables weighted fair queuing for the factorial stage. Each client session
+     * gets its own sub-queue, ordered shortest-job-first, and sessions take
+     * turns by deficit round robin so that a client with a large backlog cannot
+     * hold up the others. Fair queuing replaces disk spillover for the factorial
+     * stage.
+     * Must be called before startServer().
+     * @param weights relative share of each client host, hosts not listed have weight 1
+     */
+    public void enableFairQueuing(Map<String, Integer> weights)
+    {
+        this.sessionWeights = new ConcurrentHashMap<>(weights);
+    }
+    
+    /**
+     * Selects the async engine in place of the Worker thread pools. Each Task
+     * runs as a chain of CompletableFutures, the factorial stage, then the prime
+     * stage, then delivery to the output queues, on the given Executors. The
+     * result is the same, only how threads are used differs. Scheduling, fair
+     * queuing, spillover and the worker gateway apply to the Worker thread pools
+     * only, and are not used by the async engine.
+     * Must be called before startServer().
+     * @param factorialExecutor running the factorial stage
+     * @param primeExecutor running the prime stage
+     * @param deliveryExecutor adding finished Tasks to the output queues
+     */
+    public void enableAsyncPipeline(Executor factorialExecutor, Executor primeExecutor, Executor deliveryExecutor)
+    {
+        this.factorialExecutor = factorialExecutor;
+        this.primeExecutor = primeExecutor;
+        this.deliveryExecutor = deliveryExecutor;
+    }
+    
+    /**
+     * Enables disk spillover for the factorial stage. Once more than threshold
+     * Tasks are waiting, the rest are written to memory-mapped segment files in
+     * the given directory and read back as the workers catch up. Spillover
+     * replaces shortest-job-first ordering for the factorial stage, and is not
+     * used if fair queuing is enabled.
+     * Must be called before startServer().
+     * @param directory for segment files
+     * @param threshold number of waiting Tasks kept in memory
+     */
+    public void enableSpillover(String directory, int threshold)
+    {
+        this.spillDirectory = new File(directory);
+        this.spillThreshold = threshold;
+    }
+    
+    /**
+     * Enables TaskBatches in the Worker thread pools. The cheap Tasks each worker
+     * thread claims are copied into a pooled struct-of-arrays TaskBatch and
+     * processed together, rather than one Task at a time. Not used by the async
+     * engine.
+     * Must be called before startServer().
+     */
+    public void enableBatches()
+    {
+        this.batches = true;
+    }
+    
+    /**
+     * Configures the outbound buffer of every client connection. A client which
+     * falls more than capacity results behind has the policy applied to it.
+     * Must be called before startServer().
+     * @param capacity number of results buffered in memory per connection
+     * @param policy applied when a connection's buffer is full
+     */
+    public void setOutboundBuffer(int capacity, ClientOutputWorker.OverflowPolicy policy)
+    {
+        this.outboundCapacity = capacity;
+        this.overflowPolicy = policy;
     }
     
     /**
@@ -62,27 +333,265 @@ public class ProcessServer {
     {
         // Input Queue List contains all queues which start the pipeline.
         input = new ArrayList<>();
-        NotificationQueue<Task> queue1 = new NotificationQueue<>(new LinkedBlockingQueue());
+        NotificationQueue<Task> queue1 = new NotificationQueue<>(new LinkedBlockingQueue(), "input");
         input.add(queue1);
 
         // Intermediatary Queue List containing sub-lists which are used between tasks.
         List<NotificationQueue<Task>> step2 = new ArrayList<>();
-        NotificationQueue<Task> queue2 = new NotificationQueue<>(new LinkedBlockingQueue());
+        // Lock-free ring buffer, written to by all FactorialWorker threads
+        NotificationQueue<Task> queue2 = new NotificationQueue<>(
+                new RingBufferQueue<Task>(STEP2_CAPACITY, RingBufferQueue.ProducerType.MULTI), "step2");
         step2.add(queue2);
 
         // Output Queue List which contains all queues that are at the end of the pipeline
         output = new ArrayList<>();
-        NotificationQueue<Task> queue3 = new NotificationQueue<>(new LinkedBlockingQueue());
+        NotificationQueue<Task> queue3 = new NotificationQueue<>(new LinkedBlockingQueue(), "output");
         output.add(queue3);
 
-        Worker factorialWorker = new FactorialWorker(10, step2);
-        Worker primeWorker = new PrimeWorker(10, output);
+        if(factorialExecutor != null)
+        {
+            // Each task runs as a chain of futures rather than through the worker queues
+            pipeline = new AsyncPipeline(factorialExecutor, primeExecutor, deliveryExecutor, output);
+            queue1.addListener(pipeline);
+            queue2.addListener(pipeline.getPrimeStage());
+        }
+        else
+        {
+            setupWorkers(queue1, queue2, step2);
+        }
+        
+        // Range requests start each chunk in the factorial stage and derive the
+        // rest of the chunk once its first factorial reaches the prime stage
+        ranges = new RangeAggregator(input, step2, output, STAGE_THREADS);
+        if(pipeline != null)
+        {
+            pipeline.addFactorialListener(ranges.getChunkListener());
+        }
+        else
+        {
+            queue2.addListener(ranges.getChunkListener());
+        }
+        for(NotificationQueue<Task> q : output)
+        {
+            q.addListener(ranges);
+        }
+        
+        if(shedWaitMillis > 0 || shedDepth > 0)
+        {
+            shedder = new LoadShedder(shedWaitMillis, shedDepth);
+            shedder.watch(queue1);
+            shedder.watch(queue2);
+            if(pipeline != null)
+            {
+                // tasks wait in the executors' queues rather than the workers'
+                for(Executor executor : new Executor[] {factorialExecutor, primeExecutor})
+                {
+                    if(executor instanceof ThreadPoolExecutor)
+                    {
+                        shedder.watch(((ThreadPoolExecutor) executor).getQueue());
+                    }
+                }
+            }
+            else
+            {
+                shedder.watch(factorialWorker);
+                shedder.watch(primeWorker);
+            }
+        }
+        
+        // Tasks reaching the output queues are no longer outstanding for their client
+        for(NotificationQueue<Task> q : output)
+        {
+            q.addListener(new NotificationQueue.Listener<Task>() {
+                @Override
+                public void ping(Task task) {
+                    InputHandler owner = owners.remove(task.getSerial());
+                    if(owner != null)
+                    {
+                        owner.outstanding.remove(task.getSerial());
+                        owner.keep(task);
+                    }
+                }
+            });
+        }
+            
+        if(pipeline == null)
+        {
+            workers.add(factorialWorker);
+            workers.add(primeWorker);
+        }
+        
+        if(cache != null)
+        {
+            // Every finished result is remembered
+            for(NotificationQueue<Task> q : output)
+            {
+                q.addListener(cache);
+            }
+        }
+        
+        if(gateway != null && pipeline != null)
+        {
+            Log.warn("Worker gateway is not available with the async engine");
+        }
+        else if(gateway != null)
+        {
+            gateway.addStage(WorkerMessage.Stage.FACTORIAL, factorialWorker);
+            gateway.addStage(WorkerMessage.Stage.PRIME, primeWorker);
+            gateway.start();
+        }
+        
+        if(cluster != null)
+        {
+            // Results for tasks forwarded from other nodes are sent back to them
+            for(NotificationQueue<Task> q : output)
+            {
+                q.addListener(cluster);
+            }
+            
+            // Forwarded tasks are looked up in the cache of the node that owns them
+            if(cache != null)
+            {
+                cluster.setCache(cache);
+            }
+            
+            cluster.start(input, output);
+        }
+        
+        if(intakeLog != null)
+        {
+            // Tasks reaching the output queues have completed the pipeline
+            for(NotificationQueue<Task> q : output)
+            {
+                q.addListener(intakeLog);
+            }
+            
+            // Replay tasks which were not completed before the last shutdown
+            for(Task task : intakeLog.getRecovered())
+            {
+                for(Queue<Task> queue : input)
+                {
+                    queue.add(task);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Internal helper method which creates the Workers of the queue-based
+     * pipeline and attaches them to the queues before and after the prime stage.
+     */
+    private void setupWorkers(NotificationQueue<Task> queue1, NotificationQueue<Task> queue2,
+            List<NotificationQueue<Task>> step2)
+    {
+        factorialWorker = new FactorialWorker(STAGE_THREADS, step2);
+        primeWorker = new PrimeWorker(STAGE_THREADS, output);
+        
+        // Serve cheap tasks first, n is a good predictor of cost for both stages
+        factorialWorker.setScheduler(SchedulingQueue.BY_FACTORIAL);
+        primeWorker.setScheduler(SchedulingQueue.BY_FACTORIAL);
+        
+        if(batches)
+        {
+            factorialWorker.enableBatches();
+            primeWorker.enableBatches();
+        }
+        
+        if(sessionWeights != null)
+        {
+            // Share the factorial stage between clients, a slice at a time
+            final FairQueue.Classifier classifier = new FairQueue.Classifier() {
+                @Override
+                public Object session(Task task) {
+                    Task root = (task.getParent() != null) ? task.getParent() : task;
+                    return owners.get(root.getSerial());
+                }
+                
+                @Override
+                public int weight(Object session) {
+                    String host = ((InputHandler) session).client.getInetAddress().getHostAddress();
+                    return sessionWeights.getOrDefault(host, 1);
+                }
+            };
+            final SchedulingQueue.CostEstimator nextSlice = new SchedulingQueue.CostEstimator() {
+                @Override
+                public long cost(Task task) {
+                    return Math.min(task.getFactorial() - task.getCurrent() + 1, FactorialWorker.DEFAULT_SLICE);
+                }
+            };
+            // every slice is a new turn, so slices are claimed one at a time
+            factorialWorker.setMaxBatch(1);
+            factorialWorker.setInputQueues(new Supplier<Queue<Task>>() {
+                @Override
+                public Queue<Task> get() {
+                    return new FairQueue(classifier, nextSlice, FactorialWorker.DEFAULT_SLICE, new Supplier<Queue<Task>>() {
+                        @Override
+                        public Queue<Task> get() {
+                            return new SchedulingQueue(SchedulingQueue.BY_FACTORIAL);
+                        }
+                    });
+                }
+            });
+        }
+        else if(spillDirectory != null)
+        {
+            // Bursts build up in front of the factorial stage, spill them to disk
+            final int stripeThreshold = Math.max(2, spillThreshold / factorialWorker.getThreadCount());
+            factorialWorker.setInputQueues(new Supplier<Queue<Task>>() {
+                @Override
+                public Queue<Task> get() {
+                    return new SpilloverQueue<>(spillDirectory, stripeThreshold, new SpilloverQueue.Codec<Task>() {
+                        @Override
+                        public int size(Task task) {
+                            return SpilloverQueue.TASK_CODEC.size(task);
+                        }
+
+                        @Override
+                        public void write(ByteBuffer buffer, Task task) {
+                            SpilloverQueue.TASK_CODEC.write(buffer, task);
+                        }
+
+                        @Override
+                        public Task read(ByteBuffer buffer) {
+                            return restore(SpilloverQueue.TASK_CODEC.read(buffer));
+                        }
+                    });
+                }
+            });
+        }
 
         queue1.addListener(factorialWorker);
-        queue2.addListener(primeWorker);
-            
-        workers.add(factorialWorker);
-        workers.add(primeWorker);
+        // The prime stage only takes what it has room for, so once the bounded
+        // ring buffer fills the FactorialWorker threads wait instead
+        queue2.subscribe(primeWorker);
+    }
+    
+    /**
+     * Internal helper method which swaps a Task read back from disk for the
+     * original object still held by its client's InputHandler, so that a
+     * cancellation made while the Task was on disk is not lost.
+     * @param copy of the task read from disk
+     * @return original task if its client is still connected, otherwise the copy
+     */
+    private Task restore(Task copy)
+    {
+        InputHandler owner = owners.get(copy.getSerial());
+        if(owner != null)
+        {
+            Task original = owner.outstanding.get(copy.getSerial());
+            if(original != null)
+            {
+                return original;
+            }
+        }
+        
+        Task part = ranges.get(copy.getSerial());
+        if(part != null)
+        {
+            return part;
+        }
+        
+        return copy;
     }
     
     /**
@@ -93,15 +602,35 @@ public class ProcessServer {
     {
         running = true;
         
+        // release everything held for a connection as soon as it closes
+        connections = new ConnectionManager(heartbeatMillis, idleTimeoutMillis);
+        connections.addListener(new NotificationQueue.Listener<ConnectionManager.Connection>() {
+            @Override
+            public void ping(ConnectionManager.Connection connection) {
+                if(connection instanceof ClientOutputWorker)
+                {
+                    for(NotificationQueue<Task> q : output)
+                    {
+                        q.removeListener((ClientOutputWorker) connection);
+                    }
+                    workers.remove(connection);
+                }
+                else
+                {
+                    clients.remove(connection);
+                }
+            }
+        });
+        
         dispatcher = new Thread(new Runnable(){
             @Override
             public void run() {
                 ServerSocket dispatcherSocket = null;
                 try
                 {  
-                    dispatcherSocket = new ServerSocket(DISPATCHER_PORT);
+                    dispatcherSocket = new ServerSocket(dispatcherPort);
                     
-                    System.out.println("Dispatcher started at " + InetAddress.getLocalHost() + " on port " + DISPATCHER_PORT);
+                    System.out.println("Dispatcher started at " + InetAddress.getLocalHost() + " on port " + dispatcherPort);
                     
                 }
                 catch (IOException e)
@@ -115,12 +644,14 @@ public class ProcessServer {
                     {  
                         Socket dispatcherClient = dispatcherSocket.accept();
 
-                        System.out.println("Dispatcher: Connection made with " + dispatcherClient.getInetAddress());                         
+                        Log.info("Dispatcher: Connection made with {}", dispatcherClient.getInetAddress());                         
                         
                         // Adds new ClientOutputWorker which will handle sending tasks
                         // back to Clients. Have used an empty anonymous ArrayList as 
                         // this is the final step.
-                        Worker worker = new ClientOutputWorker(dispatcherClient, 1, new ArrayList());
+                        ClientOutputWorker worker = new ClientOutputWorker(dispatcherClient, 1, new ArrayList(), outboundCapacity, overflowPolicy);
+                        worker.setConnectionManager(connections);
+                        connections.register(worker);
                         
                         for(NotificationQueue q : output)
                         {
@@ -134,7 +665,7 @@ public class ProcessServer {
                 }
                 catch (IOException e)
                 {  
-                    System.err.println("Can't accept client connection: " + e);
+                    Log.error("Can't accept client connection: {}", e);
                 }
                 
                 System.out.println("Dispatcher has closed");
@@ -147,8 +678,8 @@ public class ProcessServer {
                 ServerSocket receiverSocket = null;
                 try
                 {  
-                    receiverSocket = new ServerSocket(RECEIVER_PORT);
-                    System.out.println("Receiver started at " + InetAddress.getLocalHost() + " on port " + RECEIVER_PORT);   
+                    receiverSocket = new ServerSocket(receiverPort);
+                    System.out.println("Receiver started at " + InetAddress.getLocalHost() + " on port " + receiverPort);   
                 }
                 catch (IOException e)
                 {  
@@ -161,9 +692,10 @@ public class ProcessServer {
                     {
                         Socket receiverClient = receiverSocket.accept();
 
-                        System.out.println("Receiver: Connection made with " + receiverClient.getInetAddress());
+                        Log.info("Receiver: Connection made with {}", receiverClient.getInetAddress());
 
                         InputHandler client = new InputHandler(receiverClient);
+                        connections.register(client);
                         Thread thread = new Thread(client);
                         thread.start();
                         
@@ -175,7 +707,7 @@ public class ProcessServer {
                 }
                 catch (IOException e)
                 {  
-                    System.err.println("Can't accept client connection: " + e);
+                    Log.error("Can't accept client connection: {}", e);
                 }
                 System.out.println("Receiver has closed");
             }
@@ -203,6 +735,43 @@ public class ProcessServer {
             worker.requestStop();
         }
         
+        if(pipeline != null)
+        {
+            pipeline.requestStop();
+        }
+        
+        // Closing the connections releases InputHandlers blocked on a read
+        if(connections != null)
+        {
+            connections.requestStop();
+        }
+        
+        if(intakeLog != null)
+        {
+            intakeLog.close();
+        }
+        
+        if(cluster != null)
+        {
+            cluster.requestStop();
+        }
+        
+        if(gateway != null)
+        {
+            gateway.requestStop();
+        }
+        
+        if(cache != null)
+        {
+            cache.close();
+        }
+        
+        if(mailbox != null)
+        {
+            detachedExpiry.shutdownNow();
+            mailbox.close();
+        }
+        
         // technically the server wont stop due to threads being in the NotificationQueues
         // therefore we have implemented similar requestStop methods for NotificationQueues
         // however did not know whether it was necessary to stop them.
@@ -212,84 +781,358 @@ public class ProcessServer {
      * InputHandler manages incoming Task objects from a specific client, adding them
      * to the processing pipeline.
      */
-    public class InputHandler implements Runnable {
+    public class InputHandler implements Runnable, ConnectionManager.Connection {
         private Socket client;
         private Task task;
+        private volatile long lastRead = System.currentTimeMillis();
+        
+        // this client's own rate limit, null if clients are not limited
+        private final TokenBucket session;
+        
+        // serial -> task for the tasks submitted by this client which are still in the pipeline
+        private final Map<Long, Task> outstanding = new ConcurrentHashMap<>();
+        
+        // session named by the client for the result mailbox, 0 if none
+        private volatile long mailboxSession = 0;
         
         public InputHandler(Socket socket)
         {
             this.client = socket;
+            this.session = (admission != null) ? admission.newSession() : null;
         }
         
         @Override
         public void run() {
-            ObjectInputStream ois;
-                        
             try 
             {
-                ois = new ObjectInputStream(client.getInputStream());              
+                ObjectInputStream ois = new ObjectInputStream(client.getInputStream());              
                 
-                do {                    
-                    if(client.getInputStream().available() > 0)
+                // blocks until the next request, or fails as soon as the client
+                // disconnects or the ConnectionManager closes the socket
+                while(running)
+                {
+                    Object obj = ois.readObject();
+                    lastRead = System.currentTimeMillis();
+                    
+                    if(obj instanceof CancelRequest)
+                    {
+                        cancel(((CancelRequest)obj).getIdentifier());
+                        continue;
+                    }
+                    
+                    if(obj instanceof FetchRequest)
+                    {
+                        fetch((FetchRequest) obj);
+                        continue;
+                    }
+                    
+                    task = ((Task)obj);      
+                    task.assignSerial();
+                    
+                    // the client's clock may not agree with ours, so its timeout starts now
+                    if(task.getTimeout() > 0)
                     {
-                        task = ((Task)ois.readObject());      
+                        task.setDeadline(System.currentTimeMillis() + task.getTimeout());
+                    }
 
-                        // kill switch
-                        if(task.getFactorial() == 69420)
+                    // kill switch
+                    if(task.getFactorial() == 69420)
+                    {
+                        // stop server
+                        ProcessServer.this.stopServer();
+                        break;
+                    }
+                    
+                    // overloaded, the client may try again later
+                    if(shedder != null && shedder.shouldShed())
+                    {
+                        reject(task, LoadShedder.BUSY);
+                        continue;
+                    }
+                    
+                    // over a rate limit, tell the client rather than dropping it
+                    if(admission != null)
+                    {
+                        String rejection = admission.admit(session, task);
+                        if(rejection != null)
                         {
-                            // stop server
-                            ProcessServer.this.stopServer();
-                            break;
+                            reject(task, rejection);
+                            continue;
                         }
+                    }
+                    
+                    TaskEvent.accepted(task);
                     
-                        for(Queue queue : input)
+                    // expanded into sub-tasks, the single result comes back through the output queues
+                    if(task instanceof RangeTask)
+                    {
+                        outstanding.put(task.getSerial(), task);
+                        owners.put(task.getSerial(), this);
+                        
+                        if(!ranges.expand((RangeTask) task))
                         {
-                            queue.add(task);
+                            outstanding.remove(task.getSerial());
+                            owners.remove(task.getSerial());
+                            reject(task, "range must cover 1 to " + RangeTask.MAX_SIZE + " n");
                         }
+                        continue;
                     }
                     
-                    try {
-                        Thread.sleep(50);
-                    } catch (InterruptedException ex) {
-                        // Ignored
+                    if(intakeLog != null)
+                    {
+                        intakeLog.accepted(task);
                     }
-                    
-                } while(isSocketConnected(client) && running);                
-               
-                // client has disconnected
-                System.out.println("[Receiver] " + client.getInetAddress() + " has disconnected!");
                 
-                client.close();
-                ois.close();
-                clients.remove(this);
+                    outstanding.put(task.getSerial(), task);
+                    owners.put(task.getSerial(), this);
+                    
+                    // computed before, the result can go straight out
+                    if(cache != null && cache.lookup(task))
+                    {
+                        for(Queue<Task> queue : output)
+                        {
+                            queue.add(task);
+                        }
+                        continue;
+                    }
+                    
+                    // owned by another node, its result will come back to our output queues
+                    if(cluster != null && cluster.route(task))
+                    {
+                        continue;
+                    }
                 
+                    for(Queue<Task> queue : input)
+                    {
+                        queue.add(task);
+                    }
+                }
+            }
+            catch (EOFException | SocketException ex)
+            {
+                // client has disconnected or the connection was closed
             }
             catch (IOException | ClassNotFoundException ex)
             {
-                System.out.println("[Receiver] " + client.getInetAddress() + " has disconnected!");
-                clients.remove(this);
+                Log.error("Server thread error: {}", ex);   
+            }
+            
+            Log.info("[Receiver] {} has disconnected!", client.getInetAddress());
+            
+            close();
+            
+            // results of a named session are kept for the client to fetch later
+            if(mailbox == null || mailboxSession == 0)
+            {
+                cancelOutstanding();
+            }
+            else
+            {
+                detach();
+            }
+        }
+        
+        @Override
+        public long getLastActive()
+        {
+            // a client waiting on results is not idle
+            return (outstanding.isEmpty()) ? lastRead : System.currentTimeMillis();
+        }
+        
+        @Override
+        public boolean heartbeat(long intervalMillis)
+        {
+            // nothing is sent on this connection, a blocked read notices disconnects
+            return true;
+        }
+        
+        @Override
+        public void close()
+        {
+            try {
+                client.close();
+            } catch (IOException ignored) {
+                /* Ignored */
+            }
+            
+            connections.closed(this);
+        }
+        
+        @Override
+        public String toString()
+        {
+            return ("InputHandler(" + client.getInetAddress() + ")");
+        }
+        
+        /**
+         * Sends a Task back to the client without processing it.
+         * @param rejected task
+         * @param reason the task was rejected
+         */
+        private void reject(Task rejected, String reason)
+        {
+            rejected.reject(reason);
+            for(Queue<Task> queue : output)
+            {
+                queue.add(rejected);
+            }
+        }
+        
+        /**
+         * Marks a Task submitted by this client as cancelled. Workers will skip it.
+         * Every outstanding Task with the identifier is cancelled, should the
+         * client have used it more than once.
+         * @param identifier of the task to cancel
+         */
+        private void cancel(int identifier)
+        {
+            for(Task cancelled : outstanding.values())
+            {
+                if(cancelled.getIdentifier() == identifier)
+                {
+                    cancel(cancelled);
+                }
+            }
+        }
+        
+        /**
+         * Marks a Task as cancelled, recording it in the intake log so that it
+         * is not replayed after a restart.
+         * @param cancelled task
+         */
+        private void cancel(Task cancelled)
+        {
+            cancelled.cancel();
+            if(intakeLog != null)
+            {
+                intakeLog.cancelled(cancelled);
+            }
+        }
+        
+        /**
+         * Names this client's session and sends again every kept result asked
+         * for. Results still being calculated are sent once they are finished.
+         * @param request naming the session and the wanted tasks
+         */
+        private void fetch(FetchRequest request)
+        {
+            mailboxSession = request.getSession();
+            if(mailbox == null)
+            {
+                return;
+            }
+            
+            // reconnected in time, the session's tasks in the pipeline are ours now
+            InputHandler previous = detached.remove(mailboxSession);
+            if(previous != null)
+            {
+                adopt(previous);
+            }
+            
+            for(int identifier : request.getIdentifiers())
+            {
+                Task result = mailbox.fetch(mailboxSession, identifier);
+                if(result == null)
+                {
+                    continue;
+                }
                 
-                System.err.println("Server thread error: " + ex);   
+                // only the client connections, the rest of the pipeline is done with it
+                for(Worker worker : workers)
+                {
+                    if(worker instanceof ClientOutputWorker)
+                    {
+                        worker.process(result);
+                    }
+                }
             }
         }
-    }
-    
-    /**
-     * Internal helper method which is used to determine whether a given socket
-     * has been disconnected.
-     * @param socket to check
-     * @return whether the socket is closed
-     */
-    private boolean isSocketConnected(Socket socket)
-    {
-        boolean connected = true;
-        try {
-            socket.getOutputStream().write(0);
-        } catch (IOException ex) {
-            connected = false;
+        
+        /**
+         * Keeps the result of a finished Task in the result mailbox, if this
+         * client has named a session. Tasks which were abandoned, including those
+         * which timed out, have no result to keep.
+         * @param finished task submitted by this client
+         */
+        private void keep(Task finished)
+        {
+            if(mailbox == null || mailboxSession == 0 || finished.isAbandoned())
+            {
+                return;
+            }
+            
+            try {
+                mailbox.store(mailboxSession, finished);
+            } catch (IOException ex) {
+                Log.error("Could not keep result: {}", ex);
+            }
         }
         
-        return connected;
+        /**
+         * Keeps this disconnected client's Tasks running for the mailbox
+         * time-to-live, so a client which reconnects and names the same session
+         * still gets the results. They are cancelled if it has not done so by then.
+         */
+        private void detach()
+        {
+            final long detachedSession = mailboxSession;
+            
+            // an earlier connection of the same session is still waiting
+            InputHandler previous = detached.put(detachedSession, this);
+            if(previous != null)
+            {
+                adopt(previous);
+            }
+            
+            try {
+                detachedExpiry.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(detached.remove(detachedSession, InputHandler.this))
+                        {
+                            cancelOutstanding();
+                        }
+                    }
+                }, mailbox.getTtl(), TimeUnit.MILLISECONDS);
+            } catch (RuntimeException ex) {
+                // server is stopping
+                detached.remove(detachedSession, this);
+                cancelOutstanding();
+            }
+        }
+        
+        /**
+         * Takes over the Tasks still in the pipeline from an earlier connection
+         * of the same session.
+         * @param previous handler of the earlier connection
+         */
+        private void adopt(InputHandler previous)
+        {
+            for(Map.Entry<Long, Task> entry : previous.outstanding.entrySet())
+            {
+                outstanding.put(entry.getKey(), entry.getValue());
+                
+                // already finished, and kept by the previous handler
+                if(!owners.replace(entry.getKey(), previous, this))
+                {
+                    outstanding.remove(entry.getKey());
+                }
+            }
+            
+            previous.outstanding.clear();
+        }
+        
+        /**
+         * Cancels every Task this client still has in the pipeline, used once the
+         * client has disconnected and can no longer receive the results.
+         */
+        private void cancelOutstanding()
+        {
+            for(Task outstandingTask : outstanding.values())
+            {
+                cancel(outstandingTask);
+            }
+        }
     }
     
     /**
@@ -299,7 +1142,197 @@ public class ProcessServer {
      */
     public static void main(String[] args)
     {
-        ProcessServer server = new ProcessServer();
+        // Options:
+        //  -ports <dispatcher> <receiver>   listen on custom ports
+        //  -log <path>                      enable the durable intake log
+        //  -node <host:port>                enable cluster mode as this node
+        //  -peers <host:port,host:port>     other nodes of the cluster
+        //  -gateway <port>                  accept RemoteWorker connections
+        //  -cache <path>                    enable the result cache snapshot
+        //  -limit <session> <server> <cost> tasks/sec per client, tasks/sec and n/sec overall
+        //  -shed <wait ms> <depth>          reject tasks as busy while the pipeline is overloaded
+        //  -defer <ms>                      defer tasks over a limit up to ms instead of rejecting
+        //  -idle <ms>                       close client connections idle for ms
+        //  -fair                            share the factorial stage fairly between clients
+        //  -weight <host> <weight>          give a client host a larger share, implies -fair
+        //  -mailbox <path> <ttl ms>         keep results of named sessions for clients to fetch
+        //  -engine <queue|async>            run tasks on Worker thread pools or as chained futures
+        //  -batch                           process cheap tasks claimed together as a TaskBatch
+        //  -loglevel <level>                OFF, ERROR, WARN, INFO or DEBUG, default INFO
+        //  -outbound <capacity> <policy>    results buffered per client and DROP, DROP_OLDEST,
+        //                                   DISCONNECT or SPILL once full, default DROP_OLDEST
+        int dispatcherPort = DISPATCHER_PORT;
+        int receiverPort = RECEIVER_PORT;
+        String log = null;
+        String node = null;
+        List<String> peers = new ArrayList<>();
+        int gatewayPort = -1;
+        String cachePath = null;
+        AdmissionControl admission = null;
+        long deferMillis = -1;
+        long shedWait = 0;
+        int shedDepth = 0;
+        long idleTimeout = 0;
+        Map<String, Integer> weights = null;
+        String engine = "queue";
+        boolean batches = false;
+        String mailboxPath = null;
+        long mailboxTtl = ResultMailbox.DEFAULT_TTL;
+        int outboundCapacity = ClientOutputWorker.DEFAULT_CAPACITY;
+        ClientOutputWorker.OverflowPolicy overflowPolicy = ClientOutputWorker.DEFAULT_POLICY;
+        
+        for(int i = 0; i < args.length; ++i)
+        {
+            switch(args[i])
+            {
+                case "-ports":
+                    dispatcherPort = Integer.parseInt(args[++i]);
+                    receiverPort = Integer.parseInt(args[++i]);
+                    break;
+                case "-log":
+                    log = args[++i];
+                    break;
+                case "-node":
+                    node = args[++i];
+                    break;
+                case "-peers":
+                    for(String peer : args[++i].split(","))
+                    {
+                        peers.add(peer);
+                    }
+                    break;
+                case "-gateway":
+                    gatewayPort = Integer.parseInt(args[++i]);
+                    break;
+                case "-cache":
+                    cachePath = args[++i];
+                    break;
+                case "-limit":
+                    admission = new AdmissionControl();
+                    // allow a burst of one second's worth
+                    double sessionRate = Double.parseDouble(args[++i]);
+                    double serverRate = Double.parseDouble(args[++i]);
+                    double costRate = Double.parseDouble(args[++i]);
+                    admission.setSessionLimit(sessionRate, sessionRate);
+                    admission.setGlobalLimit(serverRate, serverRate);
+                    admission.setCostLimit(costRate, costRate);
+                    break;
+                case "-shed":
+                    shedWait = Long.parseLong(args[++i]);
+                    shedDepth = Integer.parseInt(args[++i]);
+                    break;
+                case "-idle":
+                    idleTimeout = Long.parseLong(args[++i]);
+                    break;
+                case "-fair":
+                    if(weights == null)
+                    {
+                        weights = new HashMap<>();
+                    }
+                    break;
+                case "-weight":
+                    if(weights == null)
+                    {
+                        weights = new HashMap<>();
+                    }
+                    weights.put(args[++i], Integer.parseInt(args[++i]));
+                    break;
+                case "-defer":
+                    deferMillis = Long.parseLong(args[++i]);
+                    break;
+                case "-mailbox":
+                    mailboxPath = args[++i];
+                    mailboxTtl = Long.parseLong(args[++i]);
+                    break;
+                case "-engine":
+                    engine = args[++i];
+                    break;
+                case "-batch":
+                    batches = true;
+                    break;
+                case "-loglevel":
+                    Log.setLevel(Log.Level.valueOf(args[++i].toUpperCase()));
+                    break;
+                case "-outbound":
+                    outboundCapacity = Integer.parseInt(args[++i]);
+                    overflowPolicy = ClientOutputWorker.OverflowPolicy.valueOf(args[++i].toUpperCase());
+                    break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+            }
+        }
+        
+        ProcessServer server = new ProcessServer(dispatcherPort, receiverPort);
+        server.setConnectionTimeouts(ConnectionManager.DEFAULT_HEARTBEAT, idleTimeout);
+        server.setOutboundBuffer(outboundCapacity, overflowPolicy);
+        
+        if(log != null)
+        {
+            try {
+                server.enableIntakeLog(log);
+            } catch (IOException ex) {
+                System.err.println("Could not open intake log: " + ex);
+            }
+        }
+        
+        if(node != null)
+        {
+            server.enableCluster(node, peers);
+        }
+        
+        if(gatewayPort > 0)
+        {
+            server.enableWorkerGateway(gatewayPort, WorkerGateway.DEFAULT_LEASE);
+        }
+        
+        if(cachePath != null)
+        {
+            try {
+                server.enableResultCache(cachePath, ResultCache.DEFAULT_INTERVAL);
+            } catch (IOException ex) {
+                System.err.println("Could not open result cache: " + ex);
+            }
+        }
+        
+        if(mailboxPath != null)
+        {
+            try {
+                server.enableResultMailbox(mailboxPath, mailboxTtl);
+            } catch (IOException ex) {
+                System.err.println("Could not open result mailbox: " + ex);
+            }
+        }
+        
+        if(weights != null)
+        {
+            server.enableFairQueuing(weights);
+        }
+        
+        if(engine.equals("async"))
+        {
+            server.enableAsyncPipeline(Executors.newFixedThreadPool(STAGE_THREADS),
+                    Executors.newFixedThreadPool(STAGE_THREADS), Executors.newSingleThreadExecutor());
+        }
+        
+        if(batches)
+        {
+            server.enableBatches();
+        }
+        
+        if(shedWait > 0 || shedDepth > 0)
+        {
+            server.enableLoadShedding(shedWait, shedDepth);
+        }
+        
+        if(admission != null)
+        {
+            if(deferMillis >= 0)
+            {
+                admission.setPolicy(AdmissionControl.Policy.DEFER, deferMillis);
+            }
+            server.setAdmissionControl(admission);
+        }
+        
         server.startServer();
     }
 }
@@ -0,0 +1,208 @@
+/**
+ * @author Waldo & Penzen
+ */
+
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A RangeAggregator expands RangeTasks into a sub-task per n and collects their
+ * results into a single response.
+ *
+ * Calculating every factorial of a range separately would repeat nearly all of
+ * the work, so a range is split into chunks of consecutive n, one per factorial
+ * thread. Only the first n of each chunk goes through the factorial stage, and
+ * the chunks are calculated in parallel. Once a chunk's first factorial is
+ * known, the rest of the chunk follows with one multiplication each, and those
+ * sub-tasks go straight to the prime stage where every thread checks them in
+ * parallel.
+ *
+ * The aggregator's ChunkListener listens to the intermediate queues to pick up
+ * finished chunk starts, and the aggregator itself listens to the output queues
+ * to collect results. Sub-tasks use negative identifiers of their own and are
+ * never sent to clients. As a client may use any identifier, sub-tasks are
+ * tracked by their serial instead.
+ *
+ * The rest of a chunk is added to the intermediate queues by a thread of the
+ * aggregator's own, as those queues are bounded and the thread passing on their
+ * elements cannot wait for room in them.
+ */
+public class RangeAggregator implements NotificationQueue.Listener<Task>
+{
+    private final List<NotificationQueue<Task>> input;
+    private final List<NotificationQueue<Task>> step2;
+    private final List<NotificationQueue<Task>> output;
+    private final int chunks;
+    
+    private final AtomicInteger nextIdentifier = new AtomicInteger(Integer.MIN_VALUE);
+    // sub-tasks in the pipeline, serial -> sub-task
+    private final Map<Long, Task> parts = new ConcurrentHashMap<>();
+    // sub-tasks starting a chunk which are in the factorial stage, serial -> last n of the chunk
+    private final Map<Long, Integer> chunkEnds = new ConcurrentHashMap<>();
+    private final NotificationQueue.Listener<Task> chunkListener = new ChunkListener();
+    private final ExecutorService deriver = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Range Chunk Deriver");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    
+    /**
+     * Constructor for a RangeAggregator object.
+     * @param input queues in front of the factorial stage
+     * @param step2 queues between the factorial and prime stages
+     * @param output queues at the end of the pipeline
+     * @param chunks number of chunks a range is split into, normally the factorial thread count
+     */
+    public RangeAggregator(List<NotificationQueue<Task>> input, List<NotificationQueue<Task>> step2,
+            List<NotificationQueue<Task>> output, int chunks)
+    {
+        this.input = input;
+        this.step2 = step2;
+        this.output = output;
+        this.chunks = chunks;
+    }
+    
+    /**
+     * Splits a RangeTask into chunks and starts the first n of each chunk.
+     * @param range to expand
+     * @return false if the range is empty or larger than RangeTask.MAX_SIZE
+     */
+    public boolean expand(RangeTask range)
+    {
+        int size = range.size();
+        if(size == 0 || size > RangeTask.MAX_SIZE)
+        {
+            return false;
+        }
+        
+        range.expand();
+        
+        int chunkSize = (size + chunks - 1) / chunks;
+        for(int start = range.getFrom(); start <= range.getTo(); start += chunkSize)
+        {
+            int end = (int) Math.min((long) start + chunkSize - 1, range.getTo());
+            
+            Task first = newPart(range, start);
+            chunkEnds.put(first.getSerial(), end);
+            addTo(input, first);
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Returns the sub-task with a serial, such as to swap a copy read back from
+     * disk for the original.
+     * @param serial of the sub-task
+     * @return sub-task, or null if it is not a sub-task in the pipeline
+     */
+    public Task get(long serial)
+    {
+        return parts.get(serial);
+    }
+    
+    /**
+     * Listener for the intermediate queues, which derives the rest of a chunk
+     * once the first factorial of the chunk has been calculated.
+     * @return chunk listener
+     */
+    public NotificationQueue.Listener<Task> getChunkListener()
+    {
+        return chunkListener;
+    }
+    
+    /**
+     * Tasks arriving on an output queue may finish a sub-task. Once every
+     * sub-task of a range has finished, the range's result is added to the
+     * output queues.
+     * @param obj finished task
+     */
+    @Override
+    public void ping(Task obj)
+    {
+        Task part = parts.remove(obj.getSerial());
+        if(part == null)
+        {
+            return;
+        }
+        
+        RangeTask range = (RangeTask) part.getParent();
+        if(range.partDone(obj))
+        {
+            addTo(output, range);
+        }
+    }
+    
+    /**
+     * Internal helper method which creates a sub-task of a range.
+     */
+    private Task newPart(RangeTask range, int n)
+    {
+        Task part = new Task(nextIdentifier.getAndIncrement(), n);
+        part.assignSerial();
+        part.setParent(range);
+        part.setDeadline(range.getDeadline());
+        parts.put(part.getSerial(), part);
+        
+        return part;
+    }
+    
+    /**
+     * Internal helper method which adds a Task to every queue in a list.
+     */
+    private void addTo(List<NotificationQueue<Task>> queues, Task task)
+    {
+        for(Queue<Task> queue : queues)
+        {
+            queue.add(task);
+        }
+    }
+    
+    /**
+     * The ChunkListener picks the first sub-task of each chunk off the
+     * intermediate queues and derives the rest of the chunk from it.
+     */
+    private class ChunkListener implements NotificationQueue.Listener<Task>
+    {
+        @Override
+        public void ping(Task obj)
+        {
+            Integer end = chunkEnds.remove(obj.getSerial());
+            Task first = parts.get(obj.getSerial());
+            if(end == null || first == null)
+            {
+                return;
+            }
+            
+            // the first factorial of a chunk is known, the rest only need one step each
+            final RangeTask range = (RangeTask) first.getParent();
+            final long start = obj.getValue();
+            final int from = obj.getFactorial() + 1;
+            final int to = end;
+            deriver.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long value = start;
+                    for(int n = from; n <= to; ++n)
+                    {
+                        value *= n;
+                        
+                        Task next = newPart(range, n);
+                        next.setValue(value);
+                        next.setCurrent(n + 1);
+                        addTo(step2, next);
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * @author Waldo & Penzen
+ */
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A RangeTask asks which n in [from, to] give a Factorial Prime. It is sent by a
+ * Client like any other Task, expanded by the server's RangeAggregator into a
+ * sub-task per n, and sent back once as a single result listing the n found.
+ *
+ * The sub-tasks refer back to the RangeTask as their parent, so cancelling the
+ * RangeTask, or its deadline passing, abandons all of them.
+ */
+public class RangeTask extends Task
+{
+    private static final long serialVersionUID = 1L;
+    
+    // largest number of n a single RangeTask may cover
+    public static final int MAX_SIZE = 100000;
+    
+    private final int from;
+    
+    // n whose factorial is a Factorial Prime, filled in once every sub-task is done
+    private int[] primes;
+    
+    private transient AtomicInteger remaining;
+    private transient Queue<Integer> found;
+    
+    /**
+     * Constructor for a RangeTask object.
+     * @param identifier of the task
+     * @param from first n to check
+     * @param to last n to check
+     */
+    public RangeTask(int identifier, int from, int to)
+    {
+        // n is the largest factorial, which is what the whole range costs at most
+        super(identifier, to);
+        this.from = Math.max(1, from);
+    }
+    
+    public int getFrom()
+    {
+        return this.from;
+    }
+    
+    public int getTo()
+    {
+        return this.getFactorial();
+    }
+    
+    /**
+     * Number of n covered by the range.
+     * @return range size
+     */
+    public int size()
+    {
+        return Math.max(0, this.getTo() - this.from + 1);
+    }
+    
+    /**
+     * n in the range whose factorial is a Factorial Prime.
+     * @return sorted n, or null until the range is complete
+     */
+    public int[] getPrimes()
+    {
+        return this.primes;
+    }
+    
+    /**
+     * Prepares the RangeTask to collect the results of its sub-tasks.
+     */
+    void expand()
+    {
+        this.remaining = new AtomicInteger(this.size());
+        this.found = new ConcurrentLinkedQueue<>();
+    }
+    
+    /**
+     * Records the result of one sub-task.
+     * @param part finished sub-task
+     * @return whether this was the last sub-task, in which case the result is complete
+     */
+    boolean partDone(Task part)
+    {
+        if(part.isPrime() && !part.isAbandoned())
+        {
+            found.add(part.getFactorial());
+        }
+        
+        if(remaining.decrementAndGet() > 0)
+        {
+            return false;
+        }
+        
+        int[] sorted = new int[found.size()];
+        int i = 0;
+        for(Integer n : found)
+        {
+            sorted[i++] = n;
+        }
+        Arrays.sort(sorted);
+        
+        this.primes = sorted;
+        this.setCurrent(this.getTo() + 1);
+        return true;
+    }
+    
+    @Override
+    public String toString()
+    {
+        if(this.isCancelled() || this.isRejected() || this.primes == null)
+        {
+            return super.toString();
+        }
+        
+        return ("Task("+this.getIdentifier()+") - range["+this.from+", "+this.getTo()+"] factorial primes "+Arrays.toString(this.primes));
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * @author Waldo & Penzen
+ */
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.util.List;
+
+/**
+ * A RemoteWorker is a separate process which adds compute capacity to a
+ * ProcessServer. It connects to the server's WorkerGateway, repeatedly pulls a
+ * batch of Tasks for one pipeline stage, processes them locally with the same
+ * Calculation used by the server and pushes the results back.
+ */
+public class RemoteWorker
+{
+    private static final int IDLE_WAIT = 50;
+
+    private final String hostName;
+    private final int hostPort;
+    private final WorkerMessage.Stage stage;
+    private final int batchSize;
+    private final Calculation calculation;
+
+    private volatile boolean running = true;
+
+    /**
+     * Constructor for a RemoteWorker object.
+     * @param hostName of the ProcessServer
+     * @param hostPort of the server's WorkerGateway
+     * @param stage of the pipeline to process
+     * @param batchSize number of Tasks to pull at a time
+     */
+    public RemoteWorker(String hostName, int hostPort, WorkerMessage.Stage stage, int batchSize)
+    {
+        this.hostName = hostName;
+        this.hostPort = hostPort;
+        this.stage = stage;
+        this.batchSize = batchSize;
+
+        this.calculation = (stage == WorkerMessage.Stage.FACTORIAL) ? new FactorialCalculation() : new PrimeCalculation();
+    }
+
+    /**
+     * Connects to the ProcessServer and processes Tasks until the connection is
+     * closed or requestStop is called.
+     */
+    public void run()
+    {
+        try (Socket socket = new Socket(hostName, hostPort))
+        {
+            ObjectOutputStream oos = new ObjectOutputStream(socket.getOutputStream());
+            oos.flush();
+            ObjectInputStream ois = new ObjectInputStream(socket.getInputStream());
+
+            System.out.println("Remote " + stage + " worker connected to " + hostName + ":" + hostPort);
+
+            while(running)
+            {
+                oos.writeObject(new WorkerMessage(WorkerMessage.Type.PULL, stage, 0, batchSize, null));
+                oos.flush();
+
+                WorkerMessage lease = (WorkerMessage) ois.readObject();
+                List<Task> tasks = lease.getTasks();
+
+                if(tasks.isEmpty())
+                {
+                    try {
+                        Thread.sleep(IDLE_WAIT);
+                    } catch (InterruptedException ignored) {
+                        /* Ignored */
+                    }
+                    continue;
+                }
+
+                for(Task task : tasks)
+                {
+                    // run every time slice here rather than sending partial results back
+                    do {
+                        calculation.processStep(task);
+                    } while(!calculation.isFinished(task) && !task.isAbandoned());
+                }
+
+                oos.writeObject(new WorkerMessage(WorkerMessage.Type.RESULT, stage, lease.getLeaseId(), 0, tasks));
+                oos.reset();
+                oos.flush();
+
+                System.out.println("Processed " + tasks.size() + " task(s) from lease " + lease.getLeaseId());
+            }
+        }
+        catch (IOException | ClassNotFoundException ex)
+        {
+            System.err.println("Remote worker error: " + ex);
+        }
+
+        System.out.println("Remote worker terminated...");
+    }
+
+    /**
+     * Method to initiate a safe, clean shutdown of the RemoteWorker.
+     */
+    public void requestStop()
+    {
+        this.running = false;
+    }
+
+    /**
+     * Starts a RemoteWorker process.
+     * Usage: RemoteWorker [host:port] [FACTORIAL|PRIME] [batch size]
+     * Defaults: localhost:424 FACTORIAL 16
+     * @param args
+     */
+    public static void main(String... args)
+    {
+        String host = "localhost";
+        int port = ProcessServer.WORKER_PORT;
+        WorkerMessage.Stage stage = WorkerMessage.Stage.FACTORIAL;
+        int batchSize = 16;
+
+        if(args.length > 0)
+        {
+            String[] address = args[0].split(":");
+            host = address[0];
+            if(address.length > 1)
+            {
+                port = Integer.parseInt(address[1]);
+            }
+        }
+        if(args.length > 1)
+        {
+            stage = WorkerMessage.Stage.valueOf(args[1].toUpperCase());
+        }
+        if(args.length > 2)
+        {
+            batchSize = Integer.parseInt(args[2]);
+        }
+
+        new RemoteWorker(host, port, stage, batchSize).run();
+    }
+}
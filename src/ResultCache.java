@@ -0,0 +1,337 @@
+/**
+ * @author Waldo & Penzen
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A ResultCache object remembers the result computed for every factorial n, so a
+ * repeated n can skip the pipeline entirely.
+ *
+ * New results are held in memory and periodically merged into a snapshot file of
+ * records sorted by n. At startup the snapshot is memory-mapped and searched in
+ * place rather than read into the heap, so the server is ready straight away and
+ * the operating system pages in only the part of the snapshot which is used.
+ *
+ * Snapshot layout: [magic][count] followed by count records of [n][value][isPrime]
+ */
+public class ResultCache implements NotificationQueue.Listener<Task>
+{
+    private static final int MAGIC = 0x46414354;
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_SIZE = 13;
+    public static final long DEFAULT_INTERVAL = 60000;
+
+    private final File file;
+    private final long interval;
+
+    // results computed since the last snapshot, n -> task holding the result
+    private final Map<Integer, Task> recent = new ConcurrentHashMap<>();
+    // the record count is read from the buffer's own header, so a reader never
+    // pairs a buffer with another snapshot's count
+    private volatile ByteBuffer snapshot;
+    private volatile boolean running = true;
+
+    /**
+     * Constructor for a ResultCache object which maps an existing snapshot, if any.
+     * @param path of the snapshot file
+     * @param interval milliseconds between snapshots
+     * @throws IOException if the snapshot could not be mapped
+     */
+    public ResultCache(String path, long interval) throws IOException
+    {
+        this.file = new File(path);
+        this.interval = interval;
+
+        if(file.exists())
+        {
+            map();
+            System.out.println("[ResultCache] Mapped " + count(snapshot) + " cached result(s) from " + file);
+        }
+
+        this.startSnapshotter();
+    }
+
+    /**
+     * Internal helper method which maps the snapshot file read-only.
+     */
+    private void map() throws IOException
+    {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"))
+        {
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if(buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+            {
+                System.err.println("[ResultCache] Ignoring invalid snapshot " + file);
+                return;
+            }
+
+            snapshot = buffer;
+        }
+    }
+
+    /**
+     * Internal helper method to start the snapshot thread.
+     */
+    private void startSnapshotter()
+    {
+        Thread thread = new Thread(new Snapshotter());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Fills in a Task's result if its n has been computed before.
+     * @param task to look up
+     * @return whether the result was found
+     */
+    public boolean lookup(Task task)
+    {
+        int n = task.getFactorial();
+
+        Task cached = recent.get(n);
+        if(cached != null)
+        {
+            fill(task, cached.getValue(), cached.isPrime());
+            return true;
+        }
+
+        ByteBuffer buffer = snapshot;
+        if(buffer == null)
+        {
+            return false;
+        }
+        int count = count(buffer);
+
+        // binary search the sorted records in place
+        int low = 0;
+        int high = count - 1;
+        while(low <= high)
+        {
+            int mid = (low + high) >>> 1;
+            int offset = HEADER_SIZE + mid * RECORD_SIZE;
+            int key = buffer.getInt(offset);
+
+            if(key < n)
+            {
+                low = mid + 1;
+            }
+            else if(key > n)
+            {
+                high = mid - 1;
+            }
+            else
+            {
+                fill(task, buffer.getLong(offset + 4), buffer.get(offset + 12) != 0);
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Internal helper method which copies a cached result onto a Task.
+     */
+    private void fill(Task task, long value, boolean isPrime)
+    {
+        task.setValue(value);
+        task.setPrime(isPrime);
+        task.setCurrent(task.getFactorial() + 1);
+    }
+
+    /**
+     * Tasks arriving on an output queue hold finished results, which are cached.
+     * Tasks which were abandoned or rejected are passed on without a result, so
+     * only Tasks whose factorial and prime check both ran to the end are kept.
+     * @param obj completed task
+     */
+    @Override
+    public void ping(Task obj)
+    {
+        // a range's result is not the result of its n
+        if(!obj.isAbandoned() && !obj.isRejected() && obj.getCurrent() > obj.getFactorial()
+                && !(obj instanceof RangeTask))
+        {
+            recent.putIfAbsent(obj.getFactorial(), obj);
+        }
+    }
+
+    /**
+     * Merges the results computed since the last snapshot into a new snapshot
+     * file, replacing the old one in a single rename, and maps it.
+     * @throws IOException if the snapshot could not be written
+     */
+    public synchronized void snapshot() throws IOException
+    {
+        if(recent.isEmpty())
+        {
+            return;
+        }
+
+        TreeMap<Integer, Task> pending = new TreeMap<>(recent);
+        ByteBuffer old = snapshot;
+        int oldCount = count(old);
+
+        File temp = new File(file.getPath() + ".tmp");
+        int written = 0;
+
+        try (RandomAccessFile raf = new RandomAccessFile(temp, "rw"))
+        {
+            long size = HEADER_SIZE + (long) (oldCount + pending.size()) * RECORD_SIZE;
+            MappedByteBuffer out = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            out.position(HEADER_SIZE);
+
+            // merge the two sorted sources
+            int i = 0;
+            for(Map.Entry<Integer, Task> entry : pending.entrySet())
+            {
+                int n = entry.getKey();
+                while(i < oldCount && old.getInt(HEADER_SIZE + i * RECORD_SIZE) < n)
+                {
+                    copyRecord(old, i++, out);
+                    ++written;
+                }
+                if(i < oldCount && old.getInt(HEADER_SIZE + i * RECORD_SIZE) == n)
+                {
+                    ++i;
+                }
+
+                out.putInt(n);
+                out.putLong(entry.getValue().getValue());
+                out.put((byte) (entry.getValue().isPrime() ? 1 : 0));
+                ++written;
+            }
+            while(i < oldCount)
+            {
+                copyRecord(old, i++, out);
+                ++written;
+            }
+
+            out.putInt(0, MAGIC);
+            out.putInt(4, written);
+            out.force();
+            raf.setLength(HEADER_SIZE + (long) written * RECORD_SIZE);
+        }
+
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        map();
+
+        // the snapshot now holds these, drop them from memory
+        for(Integer n : pending.keySet())
+        {
+            recent.remove(n);
+        }
+    }
+
+    /**
+     * Internal helper method which reads the record count of a snapshot.
+     */
+    private static int count(ByteBuffer buffer)
+    {
+        return (buffer == null) ? 0 : buffer.getInt(4);
+    }
+
+    /**
+     * Internal helper method which copies one record of a snapshot.
+     */
+    private void copyRecord(ByteBuffer from, int index, ByteBuffer to)
+    {
+        int offset = HEADER_SIZE + index * RECORD_SIZE;
+        to.putInt(from.getInt(offset));
+        to.putLong(from.getLong(offset + 4));
+        to.put(from.get(offset + 12));
+    }
+
+    /**
+     * Number of results in the cache.
+     * @return cached result count, approximate while a snapshot is being taken
+     */
+    public int size()
+    {
+        return count(snapshot) + recent.size();
+    }
+
+    /**
+     * Method to initiate a safe, clean shutdown of the ResultCache, writing a
+     * final snapshot.
+     */
+    public void close()
+    {
+        this.running = false;
+
+        try {
+            snapshot();
+        } catch (IOException ex) {
+            System.err.println("ResultCache error: " + ex);
+        }
+    }
+
+    /**
+     * The Snapshotter writes a snapshot on a fixed interval.
+     */
+    private class Snapshotter implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            while(running)
+            {
+                try {
+                    Thread.sleep(interval);
+                } catch (InterruptedException ignored) {
+                    /* Ignored */
+                }
+
+                try {
+                    snapshot();
+                } catch (IOException ex) {
+                    System.err.println("ResultCache error: " + ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Object testing method.
+     * Demonstrates the functionality of a ResultCache Object
+     * @param args
+     */
+    public static void main(String... args) throws IOException
+    {
+        String path = "results-test.snapshot";
+        new File(path).delete();
+
+        ResultCache cache = new ResultCache(path, DEFAULT_INTERVAL);
+        for(int n = 1; n <= 10; n += 2)
+        {
+            Task task = new Task(n, n);
+            task.setValue(n * 100);
+            task.setPrime(n % 3 == 0);
+            task.setCurrent(n + 1);
+            cache.ping(task);
+        }
+        cache.close();
+
+        // simulate restart
+        ResultCache restarted = new ResultCache(path, DEFAULT_INTERVAL);
+        for(int n = 1; n <= 10; ++n)
+        {
+            Task task = new Task(n, n);
+            System.out.println("n=" + n + " cached=" + restarted.lookup(task) + " " + task);
+        }
+        restarted.close();
+
+        new File(path).delete();
+    }
+}
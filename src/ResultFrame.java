@@ -0,0 +1,149 @@
+/**
+ * @author Waldo & Penzen
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A ResultFrame is an object serialized once into an immutable byte array, which
+ * can then be written to any number of client connections without serializing
+ * it again.
+ *
+ * Frames are encoded without a stream header and start with a reset marker, so
+ * they can be appended to any ObjectOutputStream-compatible connection once its
+ * stream header has been sent. The reset marker clears the receiver's handle
+ * table before every frame, which keeps the per-connection serializer state
+ * bounded no matter how long the connection stays open.
+ */
+public final class ResultFrame
+{
+    /**
+     * A frame holding nothing but a reset marker. An ObjectInputStream reads
+     * past it without returning anything, so it can be sent at any time to
+     * check a connection is still open without the client having to know.
+     */
+    public static final ResultFrame HEARTBEAT = new ResultFrame(new byte[] { ObjectStreamConstants.TC_RESET });
+
+    private final byte[] bytes;
+
+    private ResultFrame(byte[] bytes)
+    {
+        this.bytes = bytes;
+    }
+
+    /**
+     * Wraps bytes which were previously encoded by a ResultFrame, such as a frame
+     * read back from disk. The array must not be modified afterwards.
+     * @param bytes of an encoded frame
+     * @return frame
+     */
+    static ResultFrame wrap(byte[] bytes)
+    {
+        return new ResultFrame(bytes);
+    }
+
+    /**
+     * Serializes an object into a new ResultFrame.
+     * @param obj to serialize
+     * @return encoded frame
+     * @throws IOException if the object could not be serialized
+     */
+    public static ResultFrame encode(Object obj) throws IOException
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+        FrameOutputStream out = new FrameOutputStream(buffer);
+
+        out.reset();
+        out.writeObject(obj);
+        out.flush();
+
+        return new ResultFrame(buffer.toByteArray());
+    }
+
+    /**
+     * Writes the stream header which must precede any frames on a connection.
+     * @param out connection output stream
+     * @throws IOException if the header could not be written
+     */
+    public static void writeHeader(OutputStream out) throws IOException
+    {
+        // an ObjectOutputStream writes its header on creation, we only need the header
+        new ObjectOutputStream(out).flush();
+    }
+
+    /**
+     * Writes this frame to a connection.
+     * @param out connection output stream
+     * @throws IOException if the frame could not be written
+     */
+    public void writeTo(OutputStream out) throws IOException
+    {
+        out.write(bytes);
+    }
+
+    /**
+     * Writes this frame into a buffer, such as a memory-mapped file.
+     * @param buffer with room for length() bytes
+     */
+    void writeTo(ByteBuffer buffer)
+    {
+        buffer.put(bytes);
+    }
+
+    /**
+     * Deserializes the object held by this frame, such as a frame read back
+     * from disk.
+     * @return object encoded in the frame
+     * @throws IOException if the frame could not be read
+     * @throws ClassNotFoundException if the object's class is not available
+     */
+    public Object decode() throws IOException, ClassNotFoundException
+    {
+        // frames have no stream header of their own
+        ByteArrayOutputStream header = new ByteArrayOutputStream(8);
+        writeHeader(header);
+
+        InputStream in = new SequenceInputStream(new ByteArrayInputStream(header.toByteArray()),
+                new ByteArrayInputStream(bytes));
+        try (ObjectInputStream ois = new ObjectInputStream(in))
+        {
+            return ois.readObject();
+        }
+    }
+
+    /**
+     * Size of the encoded frame.
+     * @return number of bytes
+     */
+    public int length()
+    {
+        return bytes.length;
+    }
+
+    /**
+     * ObjectOutputStream which leaves out the stream header, producing bytes
+     * that can be appended to an existing stream.
+     */
+    private static class FrameOutputStream extends ObjectOutputStream
+    {
+        public FrameOutputStream(OutputStream out) throws IOException
+        {
+            super(out);
+        }
+
+        @Override
+        protected void writeStreamHeader()
+        {
+            /* No header */
+        }
+    }
+}
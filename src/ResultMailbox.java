@@ -0,0 +1,375 @@
+/**
+ * @author Waldo & Penzen
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A ResultMailbox object keeps the results of each client session for a while
+ * after they have been sent, so that a client whose connection dropped can fetch
+ * them again by task identifier rather than resubmitting and recomputing them.
+ *
+ * Results are appended to a memory-mapped file as encoded ResultFrames, and an
+ * index in memory maps each session and task identifier to its record. The index
+ * is rebuilt by scanning the file when it is opened, so results also survive a
+ * restart of the server. Results older than the time-to-live are removed by
+ * compaction, which copies the live records into a new file and replaces the old
+ * one in a single rename.
+ *
+ * File layout: [magic][end] followed by records of
+ *      [session][identifier][stored at][length][frame]
+ */
+public class ResultMailbox
+{
+    private static final int MAGIC = 0x4D41494C;
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 24;
+    private static final int INITIAL_SIZE = 1024 * 1024;
+    public static final long DEFAULT_TTL = 10 * 60 * 1000;
+
+    private final File file;
+    private final long ttl;
+
+    private RandomAccessFile raf;
+    private MappedByteBuffer buffer;
+    // offset just past the last record
+    private int end;
+    // bytes of records replaced by a newer result for the same task
+    private long replaced = 0;
+
+    // session -> task identifier -> record offset
+    private final Map<Long, Map<Integer, Integer>> index = new HashMap<>();
+    private volatile boolean running = true;
+
+    /**
+     * Constructor for a ResultMailbox object which opens an existing mailbox
+     * file, if any.
+     * @param path of the mailbox file
+     * @param ttl milliseconds a result is kept for
+     * @throws IOException if the file could not be mapped
+     */
+    public ResultMailbox(String path, long ttl) throws IOException
+    {
+        this.file = new File(path);
+        this.ttl = ttl;
+
+        this.open();
+        if(size() > 0)
+        {
+            System.out.println("[ResultMailbox] Mapped " + size() + " result(s) from " + file);
+        }
+
+        this.startCompactor();
+    }
+
+    /**
+     * Internal helper method which maps the mailbox file and indexes its records,
+     * starting a new file if there is no valid one.
+     */
+    private void open() throws IOException
+    {
+        boolean existing = file.exists() && file.length() >= HEADER_SIZE;
+
+        raf = new RandomAccessFile(file, "rw");
+        buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(raf.length(), INITIAL_SIZE));
+
+        if(existing && buffer.getInt(0) == MAGIC)
+        {
+            end = buffer.getInt(4);
+        }
+        else
+        {
+            if(existing)
+            {
+                System.err.println("[ResultMailbox] Ignoring invalid mailbox " + file);
+            }
+            end = HEADER_SIZE;
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, end);
+        }
+
+        index.clear();
+        replaced = 0;
+        for(int offset = HEADER_SIZE; offset < end; offset += RECORD_HEADER_SIZE + buffer.getInt(offset + 20))
+        {
+            indexRecord(buffer.getLong(offset), buffer.getInt(offset + 8), offset);
+        }
+    }
+
+    /**
+     * Internal helper method to start the compaction thread.
+     */
+    private void startCompactor()
+    {
+        Thread thread = new Thread(new Compactor());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Internal helper method which points the index at a record, counting any
+     * record it replaces.
+     */
+    private void indexRecord(long session, int identifier, int offset)
+    {
+        Map<Integer, Integer> results = index.get(session);
+        if(results == null)
+        {
+            results = new HashMap<>();
+            index.put(session, results);
+        }
+
+        Integer previous = results.put(identifier, offset);
+        if(previous != null)
+        {
+            replaced += RECORD_HEADER_SIZE + buffer.getInt(previous + 20);
+        }
+    }
+
+    /**
+     * Keeps the result of a finished Task for a session.
+     * @param session key the Task was submitted under
+     * @param task finished task
+     * @throws IOException if the result could not be encoded or the file could not grow
+     */
+    public synchronized void store(long session, Task task) throws IOException
+    {
+        ResultFrame frame = task.toFrame();
+        int size = RECORD_HEADER_SIZE + frame.length();
+
+        if((long) end + size > buffer.capacity())
+        {
+            long capacity = Math.max((long) buffer.capacity() * 2, (long) end + size);
+            if(capacity > Integer.MAX_VALUE)
+            {
+                throw new IOException("Mailbox is full: " + file);
+            }
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+
+        buffer.position(end);
+        buffer.putLong(session);
+        buffer.putInt(task.getIdentifier());
+        buffer.putLong(System.currentTimeMillis());
+        buffer.putInt(frame.length());
+        frame.writeTo(buffer);
+
+        // the record only counts once the header says it has been written
+        int offset = end;
+        end += size;
+        buffer.putInt(4, end);
+
+        indexRecord(session, task.getIdentifier(), offset);
+    }
+
+    /**
+     * Returns the kept result of a Task.
+     * @param session key the Task was submitted under
+     * @param identifier of the task
+     * @return finished task, or null if there is no result or it has expired
+     */
+    public synchronized Task fetch(long session, int identifier)
+    {
+        Map<Integer, Integer> results = index.get(session);
+        Integer offset = (results == null) ? null : results.get(identifier);
+        if(offset == null || isExpired(offset, System.currentTimeMillis()))
+        {
+            return null;
+        }
+
+        byte[] bytes = new byte[buffer.getInt(offset + 20)];
+        buffer.position(offset + RECORD_HEADER_SIZE);
+        buffer.get(bytes);
+
+        try {
+            return (Task) ResultFrame.wrap(bytes).decode();
+        } catch (IOException | ClassNotFoundException ex) {
+            Log.error("ResultMailbox error: Could not read result: {}", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Internal helper method which checks whether a record has outlived the
+     * time-to-live.
+     */
+    private boolean isExpired(int offset, long now)
+    {
+        return now - buffer.getLong(offset + 12) > ttl;
+    }
+
+    /**
+     * Number of results kept, including any which have expired but not yet been
+     * compacted away.
+     * @return result count
+     */
+    public synchronized int size()
+    {
+        int count = 0;
+        for(Map<Integer, Integer> results : index.values())
+        {
+            count += results.size();
+        }
+
+        return count;
+    }
+
+    /**
+     * How long results are kept for.
+     * @return time-to-live in milliseconds
+     */
+    public long getTtl()
+    {
+        return ttl;
+    }
+
+    /**
+     * Removes expired and replaced results by copying the live records into a
+     * new file, which replaces the old one in a single rename.
+     * @throws IOException if the new file could not be written
+     */
+    public synchronized void compact() throws IOException
+    {
+        long now = System.currentTimeMillis();
+
+        long expired = 0;
+        for(Map<Integer, Integer> results : index.values())
+        {
+            for(Integer offset : results.values())
+            {
+                if(isExpired(offset, now))
+                {
+                    expired += RECORD_HEADER_SIZE + buffer.getInt(offset + 20);
+                }
+            }
+        }
+
+        if(expired == 0 && replaced == 0)
+        {
+            return;
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile out = new RandomAccessFile(temp, "rw"))
+        {
+            int size = (int) (end - expired - replaced);
+            MappedByteBuffer copy = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, INITIAL_SIZE));
+            copy.putInt(0, MAGIC);
+            copy.position(HEADER_SIZE);
+
+            // records are copied in file order, so the oldest stay first
+            for(int offset = HEADER_SIZE; offset < end; offset += RECORD_HEADER_SIZE + buffer.getInt(offset + 20))
+            {
+                Map<Integer, Integer> results = index.get(buffer.getLong(offset));
+                Integer current = results.get(buffer.getInt(offset + 8));
+                if(current != null && current == offset && !isExpired(offset, now))
+                {
+                    int length = RECORD_HEADER_SIZE + buffer.getInt(offset + 20);
+                    copy.put(buffer.duplicate().position(offset).limit(offset + length));
+                }
+            }
+
+            copy.putInt(4, copy.position());
+            copy.force();
+        }
+
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        raf.close();
+        open();
+
+        // sessions with nothing left are forgotten
+        Iterator<Map<Integer, Integer>> sessions = index.values().iterator();
+        while(sessions.hasNext())
+        {
+            if(sessions.next().isEmpty())
+            {
+                sessions.remove();
+            }
+        }
+    }
+
+    /**
+     * Method to initiate a safe, clean shutdown of the ResultMailbox, writing
+     * the mapped file to disk.
+     */
+    public synchronized void close()
+    {
+        this.running = false;
+
+        try {
+            buffer.force();
+            raf.close();
+        } catch (IOException ex) {
+            System.err.println("ResultMailbox error: " + ex);
+        }
+    }
+
+    /**
+     * The Compactor removes expired results a few times per time-to-live.
+     */
+    private class Compactor implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            while(running)
+            {
+                try {
+                    Thread.sleep(Math.max(1000, ttl / 4));
+                } catch (InterruptedException ignored) {
+                    /* Ignored */
+                }
+
+                try {
+                    if(running)
+                    {
+                        compact();
+                    }
+                } catch (IOException ex) {
+                    Log.error("ResultMailbox error: {}", ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Object testing method.
+     * Demonstrates the functionality of a ResultMailbox Object
+     * @param args
+     */
+    public static void main(String... args) throws IOException, InterruptedException
+    {
+        String path = "mailbox-test.results";
+        new File(path).delete();
+
+        ResultMailbox mailbox = new ResultMailbox(path, 2000);
+        for(int i = 1; i <= 5; ++i)
+        {
+            Task task = new Task(i, i);
+            task.setValue(i * 100);
+            mailbox.store(i % 2, task);
+        }
+        mailbox.close();
+
+        // simulate restart, then let the results expire
+        ResultMailbox restarted = new ResultMailbox(path, 2000);
+        System.out.println("Session 1, Task(3): " + restarted.fetch(1, 3));
+        System.out.println("Session 0, Task(3): " + restarted.fetch(0, 3));
+
+        Thread.sleep(2500);
+        restarted.compact();
+        System.out.println("After expiry: " + restarted.size() + " result(s), Task(3): " + restarted.fetch(1, 3));
+        restarted.close();
+
+        new File(path).delete();
+    }
+}
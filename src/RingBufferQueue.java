@@ -0,0 +1,419 @@
+/**
+ * @author Waldo & Penzen
+ */
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A RingBufferQueue is a bounded, lock-free queue backed by a preallocated array
+ * whose size is a power of two. It can be used in place of a LinkedBlockingQueue
+ * as the backing store of a NotificationQueue.
+ *
+ * Producers claim slots by advancing a claim sequence (a plain write for a single
+ * producer, a compare-and-set for multiple producers), write the element and then
+ * publish the slot by storing the lap number the slot was written on. The consumer
+ * reads a slot once its lap number matches. No nodes are allocated per element
+ * and no locks are taken.
+ *
+ * Only one thread may consume at a time. NotificationQueue's poll is synchronized,
+ * which satisfies this.
+ *
+ * add() waits for space when the buffer is full, giving backpressure to the
+ * producers, while offer() returns false straight away.
+ */
+public class RingBufferQueue<E> extends AbstractQueue<E>
+{
+    /**
+     * Enumeration of how many threads may add to a RingBufferQueue.
+     */
+    public enum ProducerType {
+        SINGLE,
+        MULTI
+    }
+
+    private final Object[] entries;
+    private final AtomicIntegerArray published;
+    private final int mask;
+    private final int shift;
+    private final int capacity;
+    private final ProducerType producerType;
+
+    // highest sequence claimed by a producer
+    private final Sequence claimed = new Sequence(-1);
+    // highest sequence taken by the consumer
+    private final Sequence consumed = new Sequence(-1);
+
+    /**
+     * Constructor for a RingBufferQueue object.
+     * @param capacity number of slots, must be a power of two
+     * @param producerType whether one or many threads add to the queue
+     */
+    public RingBufferQueue(int capacity, ProducerType producerType)
+    {
+        if(capacity < 1 || Integer.bitCount(capacity) != 1)
+        {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.shift = Integer.numberOfTrailingZeros(capacity);
+        this.producerType = producerType;
+        this.entries = new Object[capacity];
+        this.published = new AtomicIntegerArray(capacity);
+
+        for(int i = 0; i < capacity; ++i)
+        {
+            published.set(i, -1);
+        }
+    }
+
+    /**
+     * Internal helper method which returns the lap a sequence falls on.
+     */
+    private int lap(long sequence)
+    {
+        return (int) (sequence >>> shift);
+    }
+
+    /**
+     * Internal helper method which claims the next n sequences.
+     * @param n number of slots to claim
+     * @return highest claimed sequence, or -1 if there is not enough space
+     */
+    private long claim(int n)
+    {
+        if(producerType == ProducerType.SINGLE)
+        {
+            long next = claimed.get() + n;
+            if(next - capacity > consumed.get())
+            {
+                return -1;
+            }
+
+            claimed.setRelease(next);
+            return next;
+        }
+
+        long current;
+        long next;
+        do {
+            current = claimed.get();
+            next = current + n;
+            if(next - capacity > consumed.get())
+            {
+                return -1;
+            }
+        } while(!claimed.compareAndSet(current, next));
+
+        return next;
+    }
+
+    /**
+     * Internal helper method which stores an element and makes it visible to the
+     * consumer.
+     */
+    private void publish(long sequence, E e)
+    {
+        int slot = (int) sequence & mask;
+        entries[slot] = e;
+        published.lazySet(slot, lap(sequence));
+    }
+
+    @Override
+    public boolean offer(E e)
+    {
+        if(e == null)
+        {
+            throw new NullPointerException();
+        }
+
+        long sequence = claim(1);
+        if(sequence < 0)
+        {
+            return false;
+        }
+
+        publish(sequence, e);
+        return true;
+    }
+
+    /**
+     * Adds an element, waiting for space if the buffer is full.
+     * @param e element to add
+     * @return true
+     */
+    @Override
+    public boolean add(E e)
+    {
+        int spins = 0;
+        while(!offer(e))
+        {
+            backoff(++spins);
+        }
+
+        return true;
+    }
+
+    /**
+     * Adds a batch of elements with a single claim, waiting for space if the
+     * buffer does not have room for all of them.
+     * @param batch elements to add, no larger than the capacity
+     */
+    public void addBatch(List<? extends E> batch)
+    {
+        int n = batch.size();
+        if(n == 0)
+        {
+            return;
+        }
+        if(n > capacity)
+        {
+            throw new IllegalArgumentException("Batch larger than capacity: " + n);
+        }
+
+        long last;
+        int spins = 0;
+        while((last = claim(n)) < 0)
+        {
+            backoff(++spins);
+        }
+
+        long sequence = last - n + 1;
+        for(E e : batch)
+        {
+            publish(sequence++, e);
+        }
+    }
+
+    /**
+     * Internal helper method which spins briefly, then parks, while waiting for space.
+     */
+    private void backoff(int spins)
+    {
+        if(spins < 100)
+        {
+            Thread.onSpinWait();
+        }
+        else
+        {
+            LockSupport.parkNanos(1000);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E poll()
+    {
+        long next = consumed.get() + 1;
+        int slot = (int) next & mask;
+
+        if(published.get(slot) != lap(next))
+        {
+            return null;
+        }
+
+        E e = (E) entries[slot];
+        entries[slot] = null;
+        consumed.setRelease(next);
+
+        return e;
+    }
+
+    /**
+     * Removes up to max published elements and adds them to a collection, freeing
+     * their slots together.
+     * @param c collection to add to
+     * @param max number of elements to take
+     * @return number of elements taken
+     */
+    @SuppressWarnings("unchecked")
+    public int drainTo(Collection<? super E> c, int max)
+    {
+        long first = consumed.get() + 1;
+        long next = first;
+
+        while(next - first < max)
+        {
+            int slot = (int) next & mask;
+            if(published.get(slot) != lap(next))
+            {
+                break;
+            }
+
+            c.add((E) entries[slot]);
+            entries[slot] = null;
+            ++next;
+        }
+
+        consumed.setRelease(next - 1);
+        return (int) (next - first);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E peek()
+    {
+        long next = consumed.get() + 1;
+        int slot = (int) next & mask;
+
+        return (published.get(slot) == lap(next)) ? (E) entries[slot] : null;
+    }
+
+    /**
+     * Whether no element is ready to be taken. Slots which have been claimed but
+     * not yet published count as empty.
+     * @return whether poll would return null
+     */
+    @Override
+    public boolean isEmpty()
+    {
+        long next = consumed.get() + 1;
+        return published.get((int) next & mask) != lap(next);
+    }
+
+    @Override
+    public int size()
+    {
+        return (int) (claimed.get() - consumed.get());
+    }
+
+    /**
+     * Number of slots in the buffer.
+     * @return capacity
+     */
+    public int capacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * Returns a weakly consistent iterator over the published elements.
+     * @return iterator
+     */
+    @Override
+    public Iterator<E> iterator()
+    {
+        return new Iterator<E>() {
+            private long next = consumed.get() + 1;
+
+            @Override
+            public boolean hasNext() {
+                return published.get((int) next & mask) == lap(next);
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public E next() {
+                if(!hasNext())
+                {
+                    throw new NoSuchElementException();
+                }
+
+                return (E) entries[(int) next++ & mask];
+            }
+        };
+    }
+
+    /**
+     * Left padding, keeps a Sequence's value off the cache line of whatever was
+     * allocated before it.
+     */
+    private static class LhsPadding
+    {
+        protected long p1, p2, p3, p4, p5, p6, p7;
+    }
+
+    private static class Value extends LhsPadding
+    {
+        protected volatile long value;
+    }
+
+    /**
+     * A sequence counter padded on both sides so that the producer and consumer
+     * counters never share a cache line (false sharing).
+     */
+    private static final class Sequence extends Value
+    {
+        protected long p9, p10, p11, p12, p13, p14, p15;
+
+        private static final AtomicLongFieldUpdater<Value> UPDATER =
+                AtomicLongFieldUpdater.newUpdater(Value.class, "value");
+
+        public Sequence(long initial)
+        {
+            UPDATER.set(this, initial);
+        }
+
+        public long get()
+        {
+            return value;
+        }
+
+        public void setRelease(long next)
+        {
+            UPDATER.lazySet(this, next);
+        }
+
+        public boolean compareAndSet(long expected, long next)
+        {
+            return UPDATER.compareAndSet(this, expected, next);
+        }
+    }
+
+    /**
+     * Object testing method.
+     * Demonstrates the functionality of a RingBufferQueue Object
+     * @param args
+     */
+    public static void main(String... args) throws InterruptedException
+    {
+        final int producers = 4;
+        final int perProducer = 1000000;
+        final RingBufferQueue<Integer> queue = new RingBufferQueue<>(1024, ProducerType.MULTI);
+
+        Thread[] threads = new Thread[producers];
+        for(int p = 0; p < producers; ++p)
+        {
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for(int i = 0; i < perProducer; ++i)
+                    {
+                        queue.add(i);
+                    }
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        for(Thread thread : threads)
+        {
+            thread.start();
+        }
+
+        long sum = 0;
+        int received = 0;
+        while(received < producers * perProducer)
+        {
+            Integer value = queue.poll();
+            if(value != null)
+            {
+                sum += value;
+                ++received;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long expected = (long) producers * ((long) perProducer * (perProducer - 1) / 2);
+        System.out.println("Received " + received + " elements in " + (elapsed / 1000000) + "ms, checksum "
+                + ((sum == expected) ? "ok" : "FAILED"));
+    }
+}
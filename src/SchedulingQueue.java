@@ -0,0 +1,185 @@
+/**
+ * @author Waldo & Penzen
+ */
+
+import java.util.AbstractQueue;
+import java.util.Iterator;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A SchedulingQueue object orders Tasks shortest-job-first using an estimated
+ * cost, while aging waiting Tasks so that expensive Tasks are not starved.
+ *
+ * Every Task is given a virtual deadline when it is added:
+ *      arrival time + (estimated cost * cost weight)
+ * and Tasks are served in deadline order. A cheap Task overtakes an expensive
+ * one that arrived shortly before it, but once an expensive Task has waited
+ * longer than its weighted cost, newly arriving Tasks can no longer overtake it.
+ *
+ * The arrival time is when the Task entered its Worker, so a Task re-queued
+ * after each time slice keeps the waiting it has already done.
+ */
+public class SchedulingQueue extends AbstractQueue<Task>
+{
+    /**
+     * A CostEstimator interface which predicts how much work a Task will take.
+     */
+    public interface CostEstimator {
+        /**
+         * Estimated cost of processing a Task, in arbitrary units.
+         * @param task to estimate
+         * @return estimated cost
+         */
+        public long cost(Task task);
+    }
+
+    /**
+     * Estimates the cost of a Task by its factorial n. A Task whose factorial is
+     * part done costs the numbers it has left to multiply in, and a Task whose
+     * factorial is complete costs n, which predicts its prime check.
+     */
+    public static final CostEstimator BY_FACTORIAL = new CostEstimator() {
+        @Override
+        public long cost(Task task) {
+            if(task.getCurrent() <= task.getFactorial())
+            {
+                return task.getFactorial() - task.getCurrent() + 1;
+            }
+            return task.getFactorial();
+        }
+    };
+
+    // Nanoseconds of waiting which are treated as equal to one unit of cost
+    public static final long DEFAULT_COST_WEIGHT = 1000;
+
+    private final PriorityBlockingQueue<Entry> queue = new PriorityBlockingQueue<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final CostEstimator estimator;
+    private final long costWeight;
+
+    /**
+     * Constructor for a SchedulingQueue object using the default cost weight.
+     * @param estimator used to predict the cost of each Task
+     */
+    public SchedulingQueue(CostEstimator estimator)
+    {
+        this(estimator, DEFAULT_COST_WEIGHT);
+    }
+
+    /**
+     * Constructor for a SchedulingQueue object.
+     * @param estimator used to predict the cost of each Task
+     * @param costWeight nanoseconds of waiting equal to one unit of cost. Lower
+     * values age Tasks faster, with 0 giving plain FIFO order.
+     */
+    public SchedulingQueue(CostEstimator estimator, long costWeight)
+    {
+        this.estimator = estimator;
+        this.costWeight = costWeight;
+    }
+
+    @Override
+    public boolean offer(Task task)
+    {
+        long arrival = (task.getArrivedAt() != 0) ? task.getArrivedAt() : System.nanoTime();
+        long deadline = arrival + estimator.cost(task) * costWeight;
+        return queue.offer(new Entry(task, deadline, sequence.getAndIncrement()));
+    }
+
+    @Override
+    public Task poll()
+    {
+        Entry entry = queue.poll();
+        return (entry == null) ? null : entry.task;
+    }
+
+    @Override
+    public Task peek()
+    {
+        Entry entry = queue.peek();
+        return (entry == null) ? null : entry.task;
+    }
+
+    @Override
+    public int size()
+    {
+        return queue.size();
+    }
+
+    @Override
+    public Iterator<Task> iterator()
+    {
+        final Iterator<Entry> entries = queue.iterator();
+
+        return new Iterator<Task>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public Task next() {
+                return entries.next().task;
+            }
+        };
+    }
+
+    /**
+     * A queued Task with its virtual deadline. Ties are broken by arrival order.
+     */
+    private static class Entry implements Comparable<Entry>
+    {
+        private final Task task;
+        private final long deadline;
+        private final long sequence;
+
+        public Entry(Task task, long deadline, long sequence)
+        {
+            this.task = task;
+            this.deadline = deadline;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Entry other)
+        {
+            // subtraction keeps the ordering correct if nanoTime wraps
+            long diff = this.deadline - other.deadline;
+            if(diff != 0)
+            {
+                return (diff < 0) ? -1 : 1;
+            }
+
+            return Long.compare(this.sequence, other.sequence);
+        }
+    }
+
+    /**
+     * Object testing method.
+     * Demonstrates the functionality of a SchedulingQueue Object
+     * @param args
+     */
+    public static void main(String... args)
+    {
+        SchedulingQueue queue = new SchedulingQueue(BY_FACTORIAL);
+        queue.add(new Task(1, 2000000));
+        queue.add(new Task(2, 500));
+        queue.add(new Task(3, 50000));
+        queue.add(new Task(4, 1));
+
+        // cheapest first: 4, 2, 3, 1
+        while(!queue.isEmpty())
+        {
+            System.out.println(queue.poll());
+        }
+        
+        // a Task nearly done, re-queued after its slices, goes before a new Task
+        // of the same n
+        Task resumed = new Task(5, 2000000);
+        resumed.setCurrent(1999000);
+        queue.add(new Task(6, 2000000));
+        queue.add(resumed);
+        System.out.println(queue.poll());
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * @author Waldo & Penzen
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * A SpillFile is a first-in first-out queue of ResultFrames stored on disk. It is
+ * used to hold results for a connection which has fallen too far behind to keep
+ * them in memory. The file is truncated whenever it has been fully drained.
+ *
+ * Appends only copy the frame into a write buffer, which is written out when it
+ * fills or when frames are next read back, so that appending stays cheap for the
+ * thread delivering results to every connection.
+ */
+public class SpillFile
+{
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+    private DataOutputStream writer;
+    private DataInputStream reader;
+    private int count = 0;
+    // whether frames have been appended since the writer was last flushed
+    private boolean unflushed = false;
+
+    /**
+     * Constructor for a SpillFile object backed by a new temporary file.
+     * @throws IOException if the file could not be created
+     */
+    public SpillFile() throws IOException
+    {
+        this.file = File.createTempFile("spill-", ".frames");
+        this.file.deleteOnExit();
+        this.open();
+    }
+
+    /**
+     * Internal helper method which (re)opens the file from the start.
+     * @throws IOException if the file could not be opened
+     */
+    private void open() throws IOException
+    {
+        writer = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+        reader = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+        unflushed = false;
+    }
+
+    /**
+     * Appends a frame to the end of the file.
+     * @param frame to store
+     * @throws IOException if the frame could not be written
+     */
+    public synchronized void append(ResultFrame frame) throws IOException
+    {
+        writer.writeInt(frame.length());
+        frame.writeTo(writer);
+        unflushed = true;
+        ++count;
+    }
+
+    /**
+     * Removes the oldest frame from the file.
+     * @return oldest frame, or null if the file is empty
+     * @throws IOException if the frame could not be read
+     */
+    public synchronized ResultFrame poll() throws IOException
+    {
+        if(count == 0)
+        {
+            return null;
+        }
+
+        // one flush covers every frame appended since the last read
+        if(unflushed)
+        {
+            writer.flush();
+            unflushed = false;
+        }
+
+        byte[] bytes = new byte[reader.readInt()];
+        reader.readFully(bytes);
+
+        if(--count == 0)
+        {
+            // drained, start again from an empty file
+            close();
+            open();
+        }
+
+        return ResultFrame.wrap(bytes);
+    }
+
+    /**
+     * Number of frames currently stored.
+     * @return frame count
+     */
+    public synchronized int size()
+    {
+        return count;
+    }
+
+    /**
+     * Closes the file handles.
+     */
+    public synchronized void close()
+    {
+        try {
+            writer.close();
+            reader.close();
+        } catch (IOException ex) {
+            System.err.println("SpillFile error: " + ex);
+        }
+    }
+
+    /**
+     * Closes and deletes the file.
+     */
+    public synchronized void delete()
+    {
+        close();
+        file.delete();
+    }
+}
@@ -0,0 +1,427 @@
+/**
+ * @author Waldo & Penzen
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * A SpilloverQueue object keeps the head of the queue in memory and, once more
+ * than a threshold of elements are waiting, writes the tail of the queue to
+ * memory-mapped segment files. Elements are paged back into memory as consumers
+ * catch up, so a burst much larger than the heap can be absorbed without running
+ * out of memory.
+ *
+ * Elements on disk are stored by value using a Codec, so an element read back
+ * is a copy of the element which was added. Every element in memory is older
+ * than every element on disk, which keeps the queue in FIFO order.
+ *
+ * Segment record layout: [length][encoded element], a length of -1 marks the end
+ * of a segment.
+ */
+public class SpilloverQueue<E> extends AbstractQueue<E>
+{
+    /**
+     * A Codec interface which converts elements to and from bytes.
+     * @param <E>
+     */
+    public interface Codec<E> {
+        /**
+         * Number of bytes write will use for an element.
+         * @param e element
+         * @return encoded size
+         */
+        public int size(E e);
+
+        /**
+         * Writes an element into a buffer.
+         * @param buffer to write to
+         * @param e element
+         */
+        public void write(ByteBuffer buffer, E e);
+
+        /**
+         * Reads an element from a buffer.
+         * @param buffer to read from
+         * @return element
+         */
+        public E read(ByteBuffer buffer);
+    }
+
+    /**
+     * Codec which stores Tasks as fixed size records.
+     */
+    public static final Codec<Task> TASK_CODEC = new Codec<Task>() {
+        @Override
+        public int size(Task task) {
+            return Task.ENCODED_SIZE;
+        }
+
+        @Override
+        public void write(ByteBuffer buffer, Task task) {
+            task.writeTo(buffer);
+        }
+
+        @Override
+        public Task read(ByteBuffer buffer) {
+            return Task.readFrom(buffer);
+        }
+    };
+
+    public static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+    private static final int END_OF_SEGMENT = -1;
+
+    private final ArrayDeque<E> memory = new ArrayDeque<>();
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    // elements which could not be spilled, kept in memory behind those on disk
+    private final ArrayDeque<E> overflow = new ArrayDeque<>();
+    private final File directory;
+    private final int threshold;
+    private final int segmentSize;
+    private final Codec<E> codec;
+    private long spilled = 0;
+
+    /**
+     * Constructor for a SpilloverQueue object using the default segment size.
+     * @param directory to create segment files in
+     * @param threshold number of elements kept in memory before spilling, at least 2
+     * @param codec used to store elements on disk
+     */
+    public SpilloverQueue(File directory, int threshold, Codec<E> codec)
+    {
+        this(directory, threshold, DEFAULT_SEGMENT_SIZE, codec);
+    }
+
+    /**
+     * Constructor for a SpilloverQueue object.
+     * @param directory to create segment files in
+     * @param threshold number of elements kept in memory before spilling, at least 2
+     * @param segmentSize in bytes of each segment file
+     * @param codec used to store elements on disk
+     */
+    public SpilloverQueue(File directory, int threshold, int segmentSize, Codec<E> codec)
+    {
+        // elements are paged back in once half the threshold has been consumed
+        if(threshold < 2)
+        {
+            throw new IllegalArgumentException("Threshold must be at least 2: " + threshold);
+        }
+        
+        this.directory = directory;
+        this.threshold = threshold;
+        this.segmentSize = segmentSize;
+        this.codec = codec;
+
+        directory.mkdirs();
+    }
+
+    @Override
+    public synchronized boolean offer(E e)
+    {
+        if(e == null)
+        {
+            throw new NullPointerException();
+        }
+
+        if(spilled == 0 && memory.size() < threshold)
+        {
+            return memory.add(e);
+        }
+        
+        // once spilling has failed, later elements queue behind the failed one
+        if(!overflow.isEmpty())
+        {
+            return overflow.add(e);
+        }
+
+        try {
+            spill(e);
+        } catch (IOException ex) {
+            // disk unavailable, keep the element in memory rather than lose it
+            Log.error("SpilloverQueue error: {}", ex);
+            if(spilled == 0)
+            {
+                return memory.add(e);
+            }
+            return overflow.add(e);
+        }
+
+        return true;
+    }
+
+    @Override
+    public synchronized E poll()
+    {
+        E e = memory.poll();
+
+        // page the tail back in once the consumers have caught up with half of it
+        if(spilled > 0 && (memory.isEmpty() || memory.size() < Math.max(1, threshold / 2)))
+        {
+            pageIn();
+
+            if(e == null)
+            {
+                e = memory.poll();
+            }
+        }
+
+        return e;
+    }
+
+    @Override
+    public synchronized E peek()
+    {
+        if(memory.isEmpty() && spilled > 0)
+        {
+            pageIn();
+        }
+
+        return memory.peek();
+    }
+
+    @Override
+    public synchronized int size()
+    {
+        return (int) Math.min(Integer.MAX_VALUE, memory.size() + spilled + overflow.size());
+    }
+
+    /**
+     * Number of elements currently stored on disk.
+     * @return spilled element count
+     */
+    public synchronized long getSpilled()
+    {
+        return spilled;
+    }
+
+    /**
+     * Returns an iterator over the elements at the head of the queue held in
+     * memory. Elements on disk, and any kept in memory behind them, are not
+     * included.
+     * @return iterator
+     */
+    @Override
+    public synchronized Iterator<E> iterator()
+    {
+        return new ArrayList<>(memory).iterator();
+    }
+
+    /**
+     * Internal helper method which appends an element to the newest segment,
+     * starting a new segment when it is full.
+     */
+    private void spill(E e) throws IOException
+    {
+        int size = codec.size(e);
+        if(size + 8 > segmentSize)
+        {
+            throw new IOException("Element larger than segment size: " + size);
+        }
+
+        Segment tail = segments.peekLast();
+        if(tail == null || !tail.hasRoom(size))
+        {
+            if(tail != null)
+            {
+                tail.seal();
+            }
+
+            tail = new Segment();
+            segments.addLast(tail);
+        }
+
+        tail.write(e, size);
+        ++spilled;
+    }
+
+    /**
+     * Internal helper method which moves elements from disk back into memory, up
+     * to the threshold, deleting segments once they have been fully read.
+     */
+    private void pageIn()
+    {
+        while(spilled > 0 && memory.size() < threshold)
+        {
+            Segment head = segments.peekFirst();
+            E e = head.read();
+
+            if(e == null)
+            {
+                // head segment exhausted
+                head.delete();
+                segments.pollFirst();
+                continue;
+            }
+
+            memory.add(e);
+            --spilled;
+        }
+
+        if(spilled == 0)
+        {
+            // everything read back, drop the remaining segments
+            for(Segment segment : segments)
+            {
+                segment.delete();
+            }
+            segments.clear();
+            
+            // elements which could not be spilled are next in line
+            memory.addAll(overflow);
+            overflow.clear();
+        }
+    }
+
+    /**
+     * Deletes every segment file. The queue must not be used afterwards.
+     */
+    public synchronized void close()
+    {
+        for(Segment segment : segments)
+        {
+            segment.delete();
+        }
+
+        segments.clear();
+        memory.clear();
+        overflow.clear();
+        spilled = 0;
+    }
+
+    /**
+     * A Segment is a single memory-mapped file holding part of the spilled tail.
+     * Records are written at the write position and read back from the read
+     * position.
+     */
+    private class Segment
+    {
+        private final File file;
+        private final RandomAccessFile raf;
+        private final MappedByteBuffer buffer;
+        private int readPosition = 0;
+
+        public Segment() throws IOException
+        {
+            this.file = File.createTempFile("spill-", ".seg", directory);
+            this.file.deleteOnExit();
+            this.raf = new RandomAccessFile(file, "rw");
+            this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+
+        /**
+         * Whether a record of the given size fits, leaving room for the end marker.
+         */
+        public boolean hasRoom(int size)
+        {
+            return buffer.remaining() >= size + 8;
+        }
+
+        public void write(E e, int size)
+        {
+            buffer.putInt(size);
+            codec.write(buffer, e);
+        }
+
+        /**
+         * Marks the end of the segment so readers know to move to the next one.
+         */
+        public void seal()
+        {
+            buffer.putInt(END_OF_SEGMENT);
+        }
+
+        /**
+         * Reads the next record.
+         * @return element, or null if every record has been read
+         */
+        public E read()
+        {
+            if(readPosition >= buffer.position())
+            {
+                return null;
+            }
+
+            ByteBuffer view = buffer.duplicate();
+            view.position(readPosition);
+
+            int size = view.getInt();
+            if(size == END_OF_SEGMENT)
+            {
+                readPosition = buffer.position();
+                return null;
+            }
+
+            E e = codec.read(view);
+            readPosition = view.position();
+
+            return e;
+        }
+
+        public void delete()
+        {
+            try {
+                raf.close();
+            } catch (IOException ignored) {
+                /* Ignored */
+            }
+
+            file.delete();
+        }
+    }
+
+    /**
+     * Object testing method.
+     * Demonstrates the functionality of a SpilloverQueue Object
+     * @param args
+     */
+    public static void main(String... args)
+    {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "spillover-test");
+        SpilloverQueue<Task> queue = new SpilloverQueue<>(directory, 1000, 64 * 1024, TASK_CODEC);
+
+        for(int i = 0; i < 100000; ++i)
+        {
+            queue.add(new Task(i, i % 20));
+        }
+
+        System.out.println("Queued " + queue.size() + " tasks, " + queue.getSpilled() + " on disk");
+
+        int expected = 0;
+        Task task;
+        while((task = queue.poll()) != null)
+        {
+            if(task.getIdentifier() != expected++)
+            {
+                System.out.println("Out of order: " + task);
+                break;
+            }
+        }
+
+        System.out.println("Read back " + expected + " tasks in order, " + queue.getSpilled() + " on disk");
+        queue.close();
+        
+        // smallest threshold, everything but the first two elements is spilled
+        SpilloverQueue<Task> small = new SpilloverQueue<>(directory, 2, 64 * 1024, TASK_CODEC);
+        for(int i = 0; i < 5; ++i)
+        {
+            small.add(new Task(i, i));
+        }
+        
+        int read = 0;
+        while(small.poll() != null)
+        {
+            ++read;
+        }
+        
+        System.out.println("Threshold 2: read back " + read + " of 5 tasks, " + small.size() + " left");
+        small.close();
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ * @author Waldo & Penzen
+ */
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * A StripedQueue object spreads its elements over several thread-safe
+ * sub-queues (stripes) so that consumers do not all contend on one queue.
+ *
+ * Producers add to the stripes in round-robin order. Each consumer has a home
+ * stripe which it drains first, and it only steals from the other stripes once
+ * its own is empty.
+ */
+public class StripedQueue<E> extends AbstractQueue<E>
+{
+    private final List<Queue<E>> stripes = new ArrayList<>();
+    private final AtomicInteger next = new AtomicInteger();
+    // striped counter, so size() does not walk every stripe
+    private final LongAdder count = new LongAdder();
+
+    /**
+     * Constructor for a StripedQueue object using ConcurrentLinkedQueue stripes.
+     * @param count number of stripes
+     */
+    public StripedQueue(int count)
+    {
+        this(count, new Supplier<Queue<E>>() {
+            @Override
+            public Queue<E> get() {
+                return new ConcurrentLinkedQueue<>();
+            }
+        });
+    }
+
+    /**
+     * Constructor for a StripedQueue object.
+     * @param count number of stripes
+     * @param factory creating each stripe, the queues created must be thread-safe
+     */
+    public StripedQueue(int count, Supplier<Queue<E>> factory)
+    {
+        for(int i = 0; i < Math.max(1, count); ++i)
+        {
+            stripes.add(factory.get());
+        }
+    }
+
+    /**
+     * Number of stripes.
+     * @return stripe count
+     */
+    public int stripes()
+    {
+        return stripes.size();
+    }
+
+    @Override
+    public boolean offer(E e)
+    {
+        int index = (next.getAndIncrement() & Integer.MAX_VALUE) % stripes.size();
+        return offer(index, e);
+    }
+
+    /**
+     * Adds an element to a specific stripe, such as a consumer putting an element
+     * back onto its home stripe.
+     * @param home stripe index
+     * @param e element to add
+     * @return whether successful
+     */
+    public boolean offer(int home, E e)
+    {
+        if(stripes.get(home % stripes.size()).offer(e))
+        {
+            count.increment();
+            return true;
+        }
+
+        return false;
+    }
+
+    @Override
+    public E poll()
+    {
+        return poll(0);
+    }
+
+    /**
+     * Takes an element from the home stripe, or steals one from the other
+     * stripes if the home stripe is empty.
+     * @param home stripe index of the calling consumer
+     * @return element, or null if every stripe is empty
+     */
+    public E poll(int home)
+    {
+        int n = stripes.size();
+        for(int i = 0; i < n; ++i)
+        {
+            E e = stripes.get((home + i) % n).poll();
+            if(e != null)
+            {
+                count.decrement();
+                return e;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Takes up to max elements, from the home stripe first and then from the
+     * other stripes, so that a consumer can claim a batch in one call.
+     * @param home stripe index of the calling consumer
+     * @param c collection to add the taken elements to
+     * @param max number of elements to take
+     * @return number of elements taken
+     */
+    public int drainTo(int home, Collection<? super E> c, int max)
+    {
+        int n = stripes.size();
+        int taken = 0;
+        for(int i = 0; i < n && taken < max; ++i)
+        {
+            Queue<E> stripe = stripes.get((home + i) % n);
+            E e;
+            while(taken < max && (e = stripe.poll()) != null)
+            {
+                c.add(e);
+                ++taken;
+            }
+        }
+
+        count.add(-taken);
+        return taken;
+    }
+
+    @Override
+    public E peek()
+    {
+        for(Queue<E> stripe : stripes)
+        {
+            E e = stripe.peek();
+            if(e != null)
+            {
+                return e;
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        for(Queue<E> stripe : stripes)
+        {
+            if(!stripe.isEmpty())
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public int size()
+    {
+        return Math.max(0, count.intValue());
+    }
+
+    /**
+     * Returns a weakly consistent iterator over every stripe in turn.
+     * @return iterator
+     */
+    @Override
+    public Iterator<E> iterator()
+    {
+        List<E> snapshot = new ArrayList<>();
+        for(Queue<E> stripe : stripes)
+        {
+            snapshot.addAll(stripe);
+        }
+
+        return snapshot.iterator();
+    }
+}
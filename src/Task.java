@@ -2,7 +2,10 @@
  * @author Waldo & Penzen
  */
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The Task class has variables that will be used by the workers to computer the prime number.
@@ -13,12 +16,40 @@ import java.io.Serializable;
 
 public class Task implements Serializable 
 {
+    private static final long serialVersionUID = 1L;
+    
+    // size in bytes of a Task written with writeTo
+    public static final int ENCODED_SIZE = 38;
+    
+    // last serial number given out in this process
+    private static final AtomicLong SERIALS = new AtomicLong();
+    
     private final int identifier;
+    // unique number given by the server when it takes the task in, 0 until then
+    private long serial = 0;
     private final int factorial;
     
+    // next number to multiply in, allows a factorial to resume where it left off
     private int current = 1;
     private boolean isPrime = false;
     private long value = 1;
+    
+    // milliseconds the client will wait for the result from submitting it, 0 for no limit
+    private long timeout = 0;
+    // time in epoch milliseconds after which the result is no longer wanted, 0 for none
+    private long deadline = 0;
+    private volatile boolean cancelled = false;
+    // why the server turned the task away without processing it, null if accepted
+    private String rejection = null;
+    
+    // serialized result, shared by every connection the task is broadcast to
+    private transient ResultFrame frame;
+    // System.nanoTime() when the task last joined a Worker's input queue
+    private transient long queuedAt = 0;
+    // System.nanoTime() when the task entered the Worker it is in, kept when it is re-queued
+    private transient long arrivedAt = 0;
+    // task this is a part of, such as the RangeTask it was expanded from
+    private transient Task parent = null;
 
     public Task(int identifier, int factorial)
     {
@@ -45,6 +76,37 @@ public class Task implements Serializable
         return this.identifier;
     }
     
+    public long getSerial()
+    {
+        return this.serial;
+    }
+    
+    /**
+     * Gives the Task a serial number it was given before, such as by a previous
+     * run of the server. Serial numbers given out afterwards are higher.
+     * @param serial number to restore
+     */
+    public void setSerial(long serial)
+    {
+        this.serial = serial;
+        
+        long last = SERIALS.get();
+        while(last < serial && !SERIALS.compareAndSet(last, serial))
+        {
+            last = SERIALS.get();
+        }
+    }
+    
+    /**
+     * Gives the Task the next serial number. Clients choose their own
+     * identifiers, which may clash, so the server tells the Tasks it holds apart
+     * by serial number instead.
+     */
+    public void assignSerial()
+    {
+        this.serial = SERIALS.incrementAndGet();
+    }
+    
     public int getFactorial() 
     {
         return this.factorial;
@@ -70,9 +132,172 @@ public class Task implements Serializable
         this.isPrime = isPrime;
     }
     
+    public long getTimeout()
+    {
+        return this.timeout;
+    }
+    
+    /**
+     * Sets how long the client will wait for the result. The deadline is worked
+     * out from it by the server when the Task arrives, so the client's clock
+     * does not need to agree with the server's.
+     * @param timeout in milliseconds, 0 for no limit
+     */
+    public void setTimeout(long timeout)
+    {
+        this.timeout = timeout;
+    }
+    
+    public long getDeadline()
+    {
+        return this.deadline;
+    }
+    
+    public void setDeadline(long deadline)
+    {
+        this.deadline = deadline;
+    }
+    
+    public boolean isExpired()
+    {
+        return (this.deadline > 0 && System.currentTimeMillis() > this.deadline);
+    }
+    
+    public boolean isCancelled()
+    {
+        return this.cancelled;
+    }
+    
+    public void cancel()
+    {
+        this.cancelled = true;
+    }
+    
+    public long getQueuedAt()
+    {
+        return this.queuedAt;
+    }
+    
+    public void setQueuedAt(long queuedAt)
+    {
+        this.queuedAt = queuedAt;
+    }
+    
+    public long getArrivedAt()
+    {
+        return this.arrivedAt;
+    }
+    
+    public void setArrivedAt(long arrivedAt)
+    {
+        this.arrivedAt = arrivedAt;
+    }
+    
+    public Task getParent()
+    {
+        return this.parent;
+    }
+    
+    public void setParent(Task parent)
+    {
+        this.parent = parent;
+    }
+    
+    public boolean isRejected()
+    {
+        return (this.rejection != null);
+    }
+    
+    public String getRejection()
+    {
+        return this.rejection;
+    }
+    
+    /**
+     * Marks the Task as turned away by the server without being processed. The
+     * Task is still sent back to the client, which learns why from the reason.
+     * @param reason the task was rejected
+     */
+    public void reject(String reason)
+    {
+        this.rejection = reason;
+    }
+    
+    /**
+     * Whether the Task's result is no longer wanted, either because it was
+     * cancelled or because its deadline has passed, or because the same is true
+     * of its parent. Workers skip abandoned Tasks.
+     * @return whether the task has been abandoned
+     */
+    public boolean isAbandoned()
+    {
+        return (this.isCancelled() || this.isExpired() || (this.parent != null && this.parent.isAbandoned()));
+    }
+    
+    /**
+     * Writes this Task's state into a buffer as a fixed size record, a compact
+     * alternative to Java serialization for storing Tasks on disk.
+     * @param buffer to write to
+     */
+    public void writeTo(ByteBuffer buffer)
+    {
+        buffer.putInt(this.identifier);
+        buffer.putInt(this.factorial);
+        buffer.putLong(this.serial);
+        buffer.putInt(this.current);
+        buffer.putLong(this.value);
+        buffer.put((byte) (this.isPrime ? 1 : 0));
+        buffer.putLong(this.deadline);
+        buffer.put((byte) (this.cancelled ? 1 : 0));
+    }
+    
+    /**
+     * Reads a Task previously written with writeTo.
+     * @param buffer to read from
+     * @return copy of the written task
+     */
+    public static Task readFrom(ByteBuffer buffer)
+    {
+        Task task = new Task(buffer.getInt(), buffer.getInt());
+        task.serial = buffer.getLong();
+        task.current = buffer.getInt();
+        task.value = buffer.getLong();
+        task.isPrime = (buffer.get() != 0);
+        task.deadline = buffer.getLong();
+        task.cancelled = (buffer.get() != 0);
+        
+        return task;
+    }
+    
+    /**
+     * Returns this Task serialized into a ResultFrame. The Task is only serialized
+     * the first time this is called, so it should not be modified afterwards.
+     * @return encoded task
+     * @throws IOException if the task could not be serialized
+     */
+    public synchronized ResultFrame toFrame() throws IOException
+    {
+        if(this.frame == null)
+        {
+            this.frame = ResultFrame.encode(this);
+        }
+        
+        return this.frame;
+    }
+    
     @Override
     public String toString()
     {
+        if(this.isCancelled())
+        {
+            return ("Task("+this.getIdentifier()+") - cancelled");
+        }
+        
+        if(this.isRejected())
+        {
+            return ("Task("+this.getIdentifier()+") - rejected ("+this.getRejection()+")");
+        }
+        
         return ("Task("+this.getIdentifier()+") - val("+this.getValue()+") isPrime("+this.isPrime()+")");
     }
 }
\ No newline at end of file
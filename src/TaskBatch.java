@@ -0,0 +1,261 @@
+/**
+ * @author Waldo & Penzen
+ */
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A TaskBatch holds many tasks as parallel primitive arrays (struct-of-arrays)
+ * rather than as separate Task objects. Batches are taken from a Pool and
+ * returned once processed, so that the in-process hot path allocates nothing at
+ * steady state and each processing stage walks contiguous memory.
+ *
+ * The processBatch methods of FactorialCalculation and PrimeCalculation operate
+ * directly on the arrays. They are used by the offline BatchProcessor, and by
+ * the worker threads of a Worker with batches enabled, which copy the cheap
+ * Tasks of each claim into a pooled TaskBatch and copy the results back.
+ */
+public class TaskBatch
+{
+    private final int[] identifiers;
+    private final int[] factorials;
+    private final long[] values;
+    private final boolean[] primes;
+    private int size = 0;
+    // whether the batch is waiting in its Pool
+    private boolean pooled = false;
+
+    /**
+     * Constructor for an empty TaskBatch object.
+     * @param capacity maximum number of tasks in the batch
+     */
+    public TaskBatch(int capacity)
+    {
+        this.identifiers = new int[capacity];
+        this.factorials = new int[capacity];
+        this.values = new long[capacity];
+        this.primes = new boolean[capacity];
+    }
+
+    /**
+     * Adds a task to the batch.
+     * @param identifier of the task
+     * @param factorial n to calculate
+     * @return whether there was room in the batch
+     */
+    public boolean add(int identifier, int factorial)
+    {
+        if(size == identifiers.length)
+        {
+            return false;
+        }
+
+        identifiers[size] = identifier;
+        factorials[size] = ((factorial == 0) ? 1 : factorial);
+        values[size] = 1;
+        primes[size] = false;
+        ++size;
+
+        return true;
+    }
+
+    /**
+     * Adds a Task object to the batch, along with its value so far.
+     * @param task to add
+     * @return whether there was room in the batch
+     */
+    public boolean add(Task task)
+    {
+        if(!add(task.getIdentifier(), task.getFactorial()))
+        {
+            return false;
+        }
+
+        values[size - 1] = task.getValue();
+        return true;
+    }
+
+    /**
+     * Creates a Task object from an entry, for handing results to code outside
+     * the batch path such as ClientOutputWorker.
+     * @param i index of the entry
+     * @return task holding the entry's results
+     */
+    public Task toTask(int i)
+    {
+        Task task = new Task(identifiers[i], factorials[i]);
+        task.setValue(values[i]);
+        task.setPrime(primes[i]);
+        task.setCurrent(factorials[i] + 1);
+
+        return task;
+    }
+
+    /**
+     * Copies the results of an entry back to the Task it was added from.
+     * @param i index of the entry
+     * @param task the entry was added from
+     */
+    public void copyTo(int i, Task task)
+    {
+        task.setValue(values[i]);
+        task.setPrime(primes[i]);
+        task.setCurrent(factorials[i] + 1);
+    }
+
+    /**
+     * Empties the batch so it can be reused.
+     */
+    public void clear()
+    {
+        size = 0;
+    }
+
+    /**
+     * The methods below are the getters and setter for the entries of the batch.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    public int capacity()
+    {
+        return identifiers.length;
+    }
+
+    public int getIdentifier(int i)
+    {
+        return identifiers[i];
+    }
+
+    public int getFactorial(int i)
+    {
+        return factorials[i];
+    }
+
+    public long getValue(int i)
+    {
+        return values[i];
+    }
+
+    public void setValue(int i, long value)
+    {
+        values[i] = value;
+    }
+
+    public boolean isPrime(int i)
+    {
+        return primes[i];
+    }
+
+    public void setPrime(int i, boolean isPrime)
+    {
+        primes[i] = isPrime;
+    }
+
+    /**
+     * A Pool of preallocated TaskBatch objects. Batches are taken with acquire and
+     * must be handed back with release once they are no longer used.
+     */
+    public static class Pool
+    {
+        private final ArrayBlockingQueue<TaskBatch> free;
+        private final int batchCapacity;
+
+        /**
+         * Constructor for a Pool object, allocating every batch up front.
+         * @param batches number of batches in the pool
+         * @param batchCapacity number of tasks each batch can hold
+         */
+        public Pool(int batches, int batchCapacity)
+        {
+            this.free = new ArrayBlockingQueue<>(batches);
+            this.batchCapacity = batchCapacity;
+
+            for(int i = 0; i < batches; ++i)
+            {
+                TaskBatch batch = new TaskBatch(batchCapacity);
+                batch.pooled = true;
+                free.add(batch);
+            }
+        }
+
+        /**
+         * Takes an empty batch from the pool, waiting until one is released if
+         * every batch is in use.
+         * @return empty batch
+         * @throws InterruptedException if interrupted while waiting
+         */
+        public TaskBatch acquire() throws InterruptedException
+        {
+            TaskBatch batch = free.take();
+            synchronized(batch)
+            {
+                batch.pooled = false;
+            }
+
+            return batch;
+        }
+
+        /**
+         * Returns a batch to the pool. A batch which is already back in the pool
+         * is not added a second time.
+         * @param batch no longer in use
+         */
+        public void release(TaskBatch batch)
+        {
+            synchronized(batch)
+            {
+                if(batch.pooled)
+                {
+                    Log.warn("TaskBatch released twice");
+                    return;
+                }
+                batch.pooled = true;
+            }
+
+            batch.clear();
+            free.offer(batch);
+        }
+
+        /**
+         * Number of tasks each batch in the pool can hold.
+         * @return batch capacity
+         */
+        public int getBatchCapacity()
+        {
+            return batchCapacity;
+        }
+    }
+
+    /**
+     * Object testing method.
+     * Demonstrates the functionality of a TaskBatch Object
+     * @param args
+     */
+    public static void main(String... args) throws InterruptedException
+    {
+        Pool pool = new Pool(2, 16);
+        Calculation factorial = new FactorialCalculation();
+        Calculation prime = new PrimeCalculation();
+
+        TaskBatch batch = pool.acquire();
+        for(int n = 1; n <= 10; ++n)
+        {
+            batch.add(n, n);
+        }
+
+        factorial.processBatch(batch);
+        prime.processBatch(batch);
+
+        for(int i = 0; i < batch.size(); ++i)
+        {
+            System.out.println(batch.toTask(i));
+        }
+
+        pool.release(batch);
+        // ignored, rather than handing the same batch out twice
+        pool.release(batch);
+    }
+}
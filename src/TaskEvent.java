@@ -0,0 +1,174 @@
+/**
+ * @author Waldo & Penzen
+ */
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * TaskEvent is the base of the Java Flight Recorder events recorded as a Task
+ * moves through the pipeline. Every event carries the Task's identifier and n,
+ * so the events of one Task can be picked out of a recording and put in order
+ * to see where its time went.
+ *
+ * The events are disabled unless a recording asks for them, in which case the
+ * cost is a flag check. Stack traces are off by default to keep them cheap
+ * enough to leave enabled, e.g.
+ *   java -XX:StartFlightRecording:filename=pipeline.jfr ProcessServer
+ *
+ * Each kind of event has a static helper which does nothing when the event is
+ * not enabled.
+ */
+@Category({"Factorial Primes", "Task"})
+@StackTrace(false)
+public abstract class TaskEvent extends Event
+{
+    @Label("Task Identifier")
+    protected int identifier;
+
+    @Label("n")
+    protected int factorial;
+
+    /**
+     * Internal helper method which copies the fields shared by every event.
+     */
+    protected void set(Task task)
+    {
+        this.identifier = task.getIdentifier();
+        this.factorial = task.getFactorial();
+    }
+
+    /**
+     * Records that a client's Task has been accepted by the server.
+     * @param task accepted
+     */
+    public static void accepted(Task task)
+    {
+        Accepted event = new Accepted();
+        if(event.isEnabled())
+        {
+            event.set(task);
+            event.commit();
+        }
+    }
+
+    /**
+     * Records that a Task has been added to a NotificationQueue.
+     * @param task added
+     * @param queue name of the queue
+     */
+    public static void enqueued(Task task, String queue)
+    {
+        Enqueued event = new Enqueued();
+        if(event.isEnabled())
+        {
+            event.set(task);
+            event.queue = queue;
+            event.commit();
+        }
+    }
+
+    /**
+     * Records that a Task has been taken from a NotificationQueue and passed
+     * to its listeners.
+     * @param task taken
+     * @param queue name of the queue
+     */
+    public static void dequeued(Task task, String queue)
+    {
+        Dequeued event = new Dequeued();
+        if(event.isEnabled())
+        {
+            event.set(task);
+            event.queue = queue;
+            event.commit();
+        }
+    }
+
+    @Name("factorial.TaskAccepted")
+    @Label("Task Accepted")
+    @Description("A client's Task was accepted by an InputHandler")
+    public static class Accepted extends TaskEvent
+    {
+    }
+
+    @Name("factorial.TaskEnqueued")
+    @Label("Task Enqueued")
+    @Description("A Task was added to a NotificationQueue")
+    public static class Enqueued extends TaskEvent
+    {
+        @Label("Queue")
+        protected String queue;
+    }
+
+    @Name("factorial.TaskDequeued")
+    @Label("Task Dequeued")
+    @Description("A Task was taken from a NotificationQueue and passed to its listeners")
+    public static class Dequeued extends TaskEvent
+    {
+        @Label("Queue")
+        protected String queue;
+    }
+
+    /**
+     * Duration event around a Worker's processStep. Call begin() before the step
+     * and finish() after it.
+     */
+    @Name("factorial.TaskStep")
+    @Label("Task Processing Step")
+    @Description("A Worker thread ran processStep on a Task")
+    public static class Step extends TaskEvent
+    {
+        @Label("Worker")
+        protected String worker;
+
+        /**
+         * Ends the step and records it if the event is enabled.
+         * @param task processed
+         * @param worker name of the Worker class
+         */
+        public void finish(Task task, String worker)
+        {
+            this.end();
+            if(this.shouldCommit())
+            {
+                this.set(task);
+                this.worker = worker;
+                this.commit();
+            }
+        }
+    }
+
+    /**
+     * Duration event around writing a result to a client connection. Call
+     * begin() before the write and finish() after it.
+     */
+    @Name("factorial.TaskWritten")
+    @Label("Task Written")
+    @Description("A Task's result was written to a client connection")
+    public static class Written extends TaskEvent
+    {
+        @Label("Client")
+        protected String client;
+
+        /**
+         * Ends the write and records it if the event is enabled.
+         * @param task written
+         * @param client address of the connection, only converted to text if recorded
+         */
+        public void finish(Task task, Object client)
+        {
+            this.end();
+            if(this.shouldCommit())
+            {
+                this.set(task);
+                this.client = String.valueOf(client);
+                this.commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,423 @@
+/**
+ * @author Waldo & Penzen
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A TaskLog object is an append-only, memory-mapped write-ahead log of every
+ * Task accepted by the ProcessServer. Each accepted Task is recorded before it
+ * enters the pipeline, and a completion marker is recorded once it reaches the
+ * output queues. Tasks which were accepted but never completed are replayed
+ * into the pipeline when the server restarts, with their original deadline so
+ * that a Task whose client has given up expires as it would have. Tasks which
+ * were cancelled are not replayed.
+ *
+ * Record layout (25 bytes): [type][serial][identifier][factorial][deadline]
+ *
+ * Tasks are told apart by the serial number the server gave them, as clients
+ * may reuse identifiers.
+ *
+ * Appends only copy bytes into the mapped segment. An internal flusher thread
+ * forces the segment to disk on a fixed interval, so a single fsync covers
+ * every record appended since the previous one (group commit). A full segment
+ * is compacted by writing the unfinished tasks to a new file, which replaces
+ * the segment in a single rename, so a crash part way through leaves the old
+ * segment intact. The new file is made larger if the unfinished tasks would
+ * fill more than half of it.
+ */
+public class TaskLog implements NotificationQueue.Listener<Task>
+{
+    private static final byte ACCEPTED = 1;
+    private static final byte COMPLETED = 2;
+    private static final byte CANCELLED = 3;
+    private static final int RECORD_SIZE = 25;
+    private static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final int FLUSH_INTERVAL = 10;
+
+    private final File file;
+    private final int segmentSize;
+    private final boolean syncCommit;
+
+    private RandomAccessFile raf;
+    private MappedByteBuffer segment;
+
+    // serial -> task for every accepted but not yet completed task
+    private final Map<Long, Task> pending = new HashMap<>();
+    private final List<Task> recovered = new ArrayList<>();
+
+    private long appended = 0;
+    private long flushed = 0;
+    private volatile boolean running = true;
+
+    /**
+     * Constructor for a TaskLog object using the default segment size and
+     * asynchronous group commit.
+     * @param path of the segment file
+     * @throws IOException if the segment could not be mapped
+     */
+    public TaskLog(String path) throws IOException
+    {
+        this(path, DEFAULT_SEGMENT_SIZE, false);
+    }
+
+    /**
+     * Constructor for a TaskLog object.
+     * @param path of the segment file
+     * @param segmentSize in bytes of the mapped segment
+     * @param syncCommit whether appends wait until their record has been forced to disk
+     * @throws IOException if the segment could not be mapped
+     */
+    public TaskLog(String path, int segmentSize, boolean syncCommit) throws IOException
+    {
+        this.file = new File(path);
+        this.segmentSize = segmentSize;
+        this.syncCommit = syncCommit;
+
+        this.open();
+        this.recover();
+        this.startFlusher();
+    }
+
+    /**
+     * Internal helper method which maps the segment file into memory.
+     * @throws IOException if the segment could not be mapped
+     */
+    private void open() throws IOException
+    {
+        raf = new RandomAccessFile(file, "rw");
+        if(raf.length() < segmentSize)
+        {
+            raf.setLength(segmentSize);
+        }
+
+        segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+    }
+
+    /**
+     * Internal helper method which scans the segment from the start, rebuilding
+     * the set of unfinished tasks and leaving the write position after the last
+     * valid record.
+     */
+    private void recover() throws IOException
+    {
+        segment.position(0);
+
+        while(segment.remaining() >= RECORD_SIZE)
+        {
+            int start = segment.position();
+            byte type = segment.get();
+            long serial = segment.getLong();
+            int identifier = segment.getInt();
+            int factorial = segment.getInt();
+            long deadline = segment.getLong();
+
+            if(type == ACCEPTED)
+            {
+                Task task = new Task(identifier, factorial);
+                task.setSerial(serial);
+                task.setDeadline(deadline);
+                pending.put(serial, task);
+            }
+            else if(type == COMPLETED || type == CANCELLED)
+            {
+                // a cancelled task's result is not wanted, so it is not replayed
+                pending.remove(serial);
+            }
+            else
+            {
+                // zero-filled space, end of log
+                segment.position(start);
+                break;
+            }
+        }
+
+        recovered.addAll(pending.values());
+
+        // start with a compact segment holding only the unfinished tasks
+        compact();
+
+        System.out.println("[TaskLog] Recovered " + recovered.size() + " unfinished task(s) from " + file);
+    }
+
+    /**
+     * Internal helper method to start the group commit thread.
+     */
+    private void startFlusher()
+    {
+        Thread thread = new Thread(new Flusher());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns all Tasks which were accepted but not completed before the previous
+     * shutdown. These should be re-added to the start of the pipeline.
+     * @return unfinished tasks
+     */
+    public List<Task> getRecovered()
+    {
+        return recovered;
+    }
+
+    /**
+     * Records that a Task has been accepted into the pipeline.
+     * @param task which was accepted
+     */
+    public void accepted(Task task)
+    {
+        long position;
+        synchronized(this)
+        {
+            pending.put(task.getSerial(), task);
+            try {
+                position = append(ACCEPTED, task);
+            } catch (IOException ex) {
+                // the task still runs, it will not be replayed after a crash
+                Log.error("TaskLog error: Could not record {}: {}", task, ex);
+                return;
+            }
+        }
+
+        if(syncCommit)
+        {
+            awaitFlush(position);
+        }
+    }
+
+    /**
+     * Records that a Task has finished the pipeline.
+     * @param task which was completed
+     */
+    public synchronized void completed(Task task)
+    {
+        if(pending.remove(task.getSerial()) != null)
+        {
+            try {
+                append(COMPLETED, task);
+            } catch (IOException ex) {
+                // replayed after a crash, which only repeats the work
+                Log.error("TaskLog error: Could not record {}: {}", task, ex);
+            }
+        }
+    }
+
+    /**
+     * Records that a Task has been cancelled, so that it is not replayed.
+     * @param task which was cancelled
+     */
+    public synchronized void cancelled(Task task)
+    {
+        if(pending.remove(task.getSerial()) != null)
+        {
+            try {
+                append(CANCELLED, task);
+            } catch (IOException ex) {
+                // replayed after a crash, which only repeats the work
+                Log.error("TaskLog error: Could not record {}: {}", task, ex);
+            }
+        }
+    }
+
+    /**
+     * Internal helper method which writes a single record into the mapped segment,
+     * compacting the segment first when it is full.
+     * @return logical position after the record
+     * @throws IOException if the segment could not be compacted
+     */
+    private long append(byte type, Task task) throws IOException
+    {
+        if(segment.remaining() < RECORD_SIZE)
+        {
+            compact();
+        }
+
+        write(segment, type, task);
+
+        return ++appended;
+    }
+
+    /**
+     * Internal helper method which writes a record at a buffer's position.
+     */
+    private static void write(ByteBuffer buffer, byte type, Task task)
+    {
+        buffer.put(type);
+        buffer.putLong(task.getSerial());
+        buffer.putInt(task.getIdentifier());
+        buffer.putInt(task.getFactorial());
+        buffer.putLong(task.getDeadline());
+    }
+
+    /**
+     * Internal helper method which replaces the segment with a new file holding
+     * only the accepted records of unfinished tasks. The new file is written and
+     * forced to disk before it is renamed over the segment, so the log on disk
+     * is always either the old segment or the new one.
+     * @throws IOException if the new segment could not be written
+     */
+    private synchronized void compact() throws IOException
+    {
+        // leave at least as much room again for new records
+        long size = Math.max(segmentSize, 2L * (pending.size() + 1) * RECORD_SIZE);
+        if(size > Integer.MAX_VALUE)
+        {
+            throw new IOException("Too many unfinished tasks to log: " + pending.size());
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile out = new RandomAccessFile(temp, "rw"))
+        {
+            out.setLength(size);
+            MappedByteBuffer copy = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            for(Task task : pending.values())
+            {
+                write(copy, ACCEPTED, task);
+            }
+            copy.force();
+        }
+
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        raf.close();
+        open();
+        segment.position(pending.size() * RECORD_SIZE);
+
+        // every unfinished task is now on disk
+        flushed = appended;
+        this.notifyAll();
+    }
+
+    /**
+     * Internal helper method which blocks until a record has been forced to disk.
+     * @param position of the record
+     */
+    private synchronized void awaitFlush(long position)
+    {
+        while(flushed < position && running)
+        {
+            try {
+                this.wait();
+            } catch (InterruptedException ignored) {
+                /* Ignored */
+            }
+        }
+    }
+
+    /**
+     * Forces all appended records to disk.
+     */
+    public synchronized void flush()
+    {
+        if(flushed < appended)
+        {
+            segment.force();
+            flushed = appended;
+            this.notifyAll();
+        }
+    }
+
+    /**
+     * Method to initiate a safe, clean shutdown of the TaskLog, forcing any
+     * remaining records to disk.
+     */
+    public void close()
+    {
+        this.running = false;
+        flush();
+
+        try {
+            raf.close();
+        } catch (IOException ex) {
+            System.err.println("TaskLog error: " + ex);
+        }
+    }
+
+    /**
+     * Tasks arriving on an output queue have completed the pipeline.
+     * @param obj completed task
+     */
+    @Override
+    public void ping(Task obj)
+    {
+        completed(obj);
+    }
+
+    /**
+     * The Flusher forces the segment to disk on a fixed interval, committing
+     * every record appended since the previous flush in one go.
+     */
+    private class Flusher implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            while(running)
+            {
+                flush();
+
+                try {
+                    Thread.sleep(FLUSH_INTERVAL);
+                } catch (InterruptedException ignored) {
+                    /* Ignored */
+                }
+            }
+        }
+    }
+
+    /**
+     * Object testing method.
+     * Demonstrates the functionality of a TaskLog Object
+     * @param args
+     */
+    public static void main(String... args) throws IOException
+    {
+        String path = "tasklog-test.log";
+        new File(path).delete();
+
+        // a small segment, so that it is compacted and grown along the way
+        TaskLog log = new TaskLog(path, 4 * RECORD_SIZE, false);
+        List<Task> tasks = new ArrayList<>();
+        for(int i = 1; i <= 10; ++i)
+        {
+            // the same identifier twice, as two clients might send
+            Task task = new Task((i + 1) / 2, i);
+            task.assignSerial();
+            if(i == 3)
+            {
+                // the client had already given up when the server stopped
+                task.setDeadline(System.currentTimeMillis() - 1);
+            }
+            tasks.add(task);
+            log.accepted(task);
+        }
+        for(int i = 0; i < tasks.size(); i += 3)
+        {
+            log.completed(tasks.get(i));
+        }
+        tasks.get(1).cancel();
+        log.cancelled(tasks.get(1));
+        log.close();
+
+        // simulate restart - every task but n = 1, 2, 4, 7 and 10 should be recovered,
+        // with n = 3 expired
+        TaskLog restarted = new TaskLog(path);
+        for(Task task : restarted.getRecovered())
+        {
+            System.out.println("Recovered: " + task + " n=" + task.getFactorial() + " expired=" + task.isExpired());
+        }
+        restarted.close();
+
+        new File(path).delete();
+    }
+}
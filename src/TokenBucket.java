@@ -0,0 +1,81 @@
+/**
+ * @author Waldo & Penzen
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A TokenBucket object limits how fast something may happen, allowing short
+ * bursts up to a fixed size.
+ *
+ * The bucket is implemented as a generic cell rate algorithm: rather than
+ * counting tokens it keeps a single "theoretical arrival time" which moves
+ * forward by the cost of each admitted request. A request is admitted if that
+ * time is no further ahead of now than the burst allows, or if the bucket is full
+ * and the request costs more than the whole burst. The state is one
+ * AtomicLong updated by compare-and-set, so the bucket never locks.
+ */
+public class TokenBucket
+{
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    // nanoseconds one unit of cost uses up
+    private final double nanosPerUnit;
+    // how far ahead of now the arrival time may run, in nanoseconds
+    private final long tolerance;
+    private final AtomicLong arrival;
+
+    /**
+     * Constructor for a TokenBucket object.
+     * @param rate units per second which may be used on average
+     * @param burst units which may be used at once by a caller which has been idle
+     */
+    public TokenBucket(double rate, double burst)
+    {
+        this.nanosPerUnit = NANOS_PER_SECOND / rate;
+        this.tolerance = (long) (burst * nanosPerUnit);
+        this.arrival = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Tries to use up some units.
+     * @param cost units to use
+     * @return 0 if the units were taken, otherwise how many nanoseconds to wait
+     * before they would be available
+     */
+    public long tryAcquire(double cost)
+    {
+        long increment = (long) (cost * nanosPerUnit);
+
+        while(true)
+        {
+            long now = System.nanoTime();
+            long current = arrival.get();
+            long start = Math.max(current, now);
+            long next = start + increment;
+
+            // a cost larger than the burst could never fit, so it is let through
+            // once the bucket is full and the arrival time runs ahead by all of it
+            long ahead = next - now;
+            if(ahead > tolerance && current > now)
+            {
+                return Math.min(ahead - tolerance, current - now);
+            }
+
+            if(arrival.compareAndSet(current, next))
+            {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Gives back units taken by tryAcquire, such as when a request passed this
+     * bucket but was turned away by another one.
+     * @param cost units to give back
+     */
+    public void refund(double cost)
+    {
+        arrival.addAndGet(-(long) (cost * nanosPerUnit));
+    }
+}
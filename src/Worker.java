@@ -5,20 +5,38 @@
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.Flow;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 
 /**
  * A Worker object which manages a Thread pool for processing Tasks.
+ * 
+ * A Worker takes Tasks either as a Listener, buffering every Task it is passed,
+ * or as a Flow.Subscriber. As a Subscriber it requests a window of Tasks and
+ * one more each time a Task leaves it, so it never holds more than the window.
  */
-public abstract class Worker implements NotificationQueue.Listener<Task>, Runnable 
+public abstract class Worker implements NotificationQueue.Listener<Task>, Flow.Subscriber<Task>, Runnable 
 {
-    private Queue<Task> input_queue = new LinkedBlockingQueue();
-    private Lock lock = new ReentrantLock();
+    // Tasks requested per thread when subscribed
+    public static final int DEFAULT_WINDOW = 16;
+    // most Tasks a WorkerRunnable claims at once
+    public static final int MAX_BATCH = 64;
+    
+    // one stripe per WorkerRunnable, each thread drains its own stripe first
+    private volatile StripedQueue<Task> input_queue;
     private WorkerRunnable[] threads;
     private List<NotificationQueue<Task>> output_queues;
     
+    // moving average of how long Tasks wait in the input queue, in nanoseconds
+    private volatile long queueDelay = 0;
+    
+    private volatile Flow.Subscription subscription;
+    private int window;
+    private volatile int maxBatch = MAX_BATCH;
+    // non-null once batches are enabled, one TaskBatch per WorkerRunnable
+    private volatile TaskBatch.Pool batches;
+    
     private boolean running = true;
 
     /**
@@ -29,6 +47,8 @@ public abstract class Worker implements NotificationQueue.Listener<Task>, Runnab
     public Worker(int num_threads, List<NotificationQueue<Task>> output_queues)
     {
         this.output_queues = output_queues;
+        this.input_queue = new StripedQueue<>(num_threads);
+        this.window = Math.max(1, num_threads) * DEFAULT_WINDOW;
         this.createThreads(num_threads);
         this.startUpdater();
     }
@@ -52,7 +72,7 @@ public abstract class Worker implements NotificationQueue.Listener<Task>, Runnab
         
         for(int i = 0; i < num_threads; ++i)
         {
-            threads[i] = new Worker.WorkerRunnable();
+            threads[i] = new Worker.WorkerRunnable(i);
             new Thread(threads[i]).start();
         }
     }
@@ -63,15 +83,122 @@ public abstract class Worker implements NotificationQueue.Listener<Task>, Runnab
      */
     public void process(Task task)
     {
+        long now = System.nanoTime();
+        task.setQueuedAt(now);
+        task.setArrivedAt(now);
         input_queue.add(task);
     }
 
+    /**
+     * Method which replaces the FIFO input stripes with shortest-job-first
+     * SchedulingQueues. Any Tasks already waiting are moved to the new queue.
+     * Tasks are ordered within each stripe, and idle threads steal from other
+     * stripes, so the order across the whole Worker is approximate.
+     * @param estimator used to predict the cost of each Task
+     */
+    public void setScheduler(final SchedulingQueue.CostEstimator estimator)
+    {
+        setInputQueues(new Supplier<Queue<Task>>() {
+            @Override
+            public Queue<Task> get() {
+                return new SchedulingQueue(estimator);
+            }
+        });
+    }
+    
+    /**
+     * Method which replaces the input stripes with queues created by a factory,
+     * one per WorkerRunnable. Any Tasks already waiting are moved to the new queue.
+     * @param factory creating each stripe, the queues created must be thread-safe
+     */
+    public void setInputQueues(Supplier<Queue<Task>> factory)
+    {
+        StripedQueue<Task> previous = input_queue;
+        input_queue = new StripedQueue<>(previous.stripes(), factory);
+        
+        Task task;
+        while((task = previous.poll()) != null)
+        {
+            input_queue.add(task);
+        }
+    }
+
+    /**
+     * Method which sets how many Tasks a subscribed Worker holds at most,
+     * waiting or being processed.
+     * Must be called before the Worker is subscribed.
+     * @param window number of Tasks requested
+     */
+    public void setWindow(int window)
+    {
+        this.window = window;
+    }
+
+    /**
+     * Method which limits how many Tasks a WorkerRunnable claims at once. A
+     * claimed batch is processed in the order it was claimed, so an input queue
+     * which must choose every Task in turn, such as a FairQueue, needs a limit
+     * of 1.
+     * @param maxBatch most Tasks claimed at once, at least 1
+     */
+    public void setMaxBatch(int maxBatch)
+    {
+        this.maxBatch = Math.max(1, maxBatch);
+    }
+
+    /**
+     * Method which lets WorkerRunnables process the Tasks they claim together as
+     * a TaskBatch. Claimed Tasks which canBatch accepts are copied into a pooled
+     * TaskBatch, processed in one call to processBatch and their results copied
+     * back; the rest are processed one at a time with processStep. Batched Tasks
+     * are not recorded as individual Step events.
+     * Only has an effect for Sub-Workers which override canBatch.
+     */
+    public void enableBatches()
+    {
+        this.batches = new TaskBatch.Pool(threads.length, MAX_BATCH);
+    }
+
     /**
      * Abstract method which is implemented by Sub-Workers and called by WorkerRunnable
      * threads.
      * @param task to process.
      */
     public abstract void processStep(Task task);
+    
+    /**
+     * Method which determines whether a Task has been fully processed by this
+     * Worker. Sub-Workers which process a Task over several time slices override
+     * this, and unfinished Tasks are re-queued behind any waiting Tasks.
+     * @param task which has just been processed
+     * @return whether the task can be passed on to the output queues
+     */
+    protected boolean isFinished(Task task)
+    {
+        return true;
+    }
+
+    /**
+     * Method which determines whether a Task can be processed as part of a
+     * TaskBatch. Sub-Workers which implement processBatch override this to
+     * accept the Tasks a single call finishes quickly.
+     * @param task which has been claimed
+     * @return whether the task can go in a TaskBatch
+     */
+    protected boolean canBatch(Task task)
+    {
+        return false;
+    }
+
+    /**
+     * Batch variant of processStep, implemented by Sub-Workers which accept Tasks
+     * in canBatch. Every entry must be finished once it returns.
+     * @param batch of tasks to process
+     */
+    public void processBatch(TaskBatch batch)
+    {
+        throw new UnsupportedOperationException(this.getClass().getName() + " does not process batches");
+    }
 
     /**
      * Method to initiate a safe, clean shutdown of all WorkerRunnable threads in
@@ -88,6 +215,60 @@ public abstract class Worker implements NotificationQueue.Listener<Task>, Runnab
         this.running = false;
     }
 
+    /**
+     * Method which is called instead of processStep for a Task whose result is no
+     * longer wanted. The Task is passed on without processing so that later
+     * stages and the intake log still see it finish.
+     * @param task which was abandoned
+     */
+    protected void skip(Task task)
+    {
+        task.cancel();
+        addToQueues(task);
+    }
+    
+    /**
+     * Number of WorkerRunnable threads, which is also the number of input stripes.
+     * @return thread count
+     */
+    public int getThreadCount()
+    {
+        return threads.length;
+    }
+    
+    /**
+     * Number of Tasks waiting in the input queue.
+     * @return input queue size
+     */
+    protected int backlog()
+    {
+        return input_queue.size();
+    }
+
+    /**
+     * Average time recently taken Tasks waited in the input queue. Reported as 0
+     * once the queue is empty, as no Task is waiting.
+     * @return queue delay in milliseconds
+     */
+    public long getQueueDelay()
+    {
+        return (input_queue.isEmpty()) ? 0 : queueDelay / 1000000;
+    }
+    
+    /**
+     * Internal helper method which adds the wait of a Task just taken from the
+     * input queue to the moving average. Races between threads only lose a sample.
+     * @param task taken from the input queue
+     */
+    private void recordDelay(Task task)
+    {
+        if(task.getQueuedAt() > 0)
+        {
+            long waited = System.nanoTime() - task.getQueuedAt();
+            queueDelay += (waited - queueDelay) / 8;
+        }
+    }
+    
     /**
      * Method which adds a processed task to all specified output queues.
      * @param task to add to output queues
@@ -101,6 +282,82 @@ public abstract class Worker implements NotificationQueue.Listener<Task>, Runnab
                 queue.add(task);
             }
         }
+        
+        // one out, one in
+        Flow.Subscription current = subscription;
+        if(current != null)
+        {
+            current.request(1);
+        }
+    }
+    
+    /**
+     * Method which adds a batch of processed tasks to all specified output
+     * queues, taking the output lock once for the whole batch.
+     * @param tasks to add to output queues
+     */
+    protected void addToQueues(List<Task> tasks)
+    {
+        if(tasks.isEmpty())
+        {
+            return;
+        }
+        
+        synchronized (output_queues)
+        {
+            for(NotificationQueue<Task> queue : output_queues)
+            {
+                queue.addBatch(tasks);
+            }
+        }
+        
+        Flow.Subscription current = subscription;
+        if(current != null)
+        {
+            current.request(tasks.size());
+        }
+    }
+    
+    /**
+     * Method which takes waiting Tasks out of the input queue so that they can be
+     * processed elsewhere, such as by a remote worker.
+     * @param tasks list to add the taken tasks to
+     * @param max number of tasks to take
+     * @return number of tasks taken
+     */
+    public int drainTo(List<Task> tasks, int max)
+    {
+        int taken = 0;
+        Task task;
+        while(taken < max && (task = input_queue.poll()) != null)
+        {
+            tasks.add(task);
+            ++taken;
+        }
+        
+        return taken;
+    }
+    
+    /**
+     * Method which hands back a Task that was processed outside of this Worker's
+     * threads. The Task is passed on to the output queues if it is finished, or
+     * re-queued if it still needs more processing.
+     * @param task which was processed elsewhere
+     */
+    public void complete(Task task)
+    {
+        if(task.isAbandoned())
+        {
+            skip(task);
+        }
+        else if(isFinished(task))
+        {
+            addToQueues(task);
+        }
+        else
+        {
+            input_queue.add(task);
+        }
     }
     
     @Override
@@ -109,10 +366,43 @@ public abstract class Worker implements NotificationQueue.Listener<Task>, Runnab
         process(obj);        
     }
     
+    @Override
+    public void onSubscribe(Flow.Subscription subscription)
+    {
+        if(this.subscription != null)
+        {
+            // a Worker takes from one Publisher at a time
+            subscription.cancel();
+            return;
+        }
+        
+        this.subscription = subscription;
+        subscription.request(window);
+    }
+    
+    @Override
+    public void onNext(Task task)
+    {
+        process(task);
+    }
+    
+    @Override
+    public void onError(Throwable throwable)
+    {
+        this.subscription = null;
+        Log.error("{} subscription failed: {}", this.getClass().getName(), throwable);
+    }
+    
+    @Override
+    public void onComplete()
+    {
+        this.subscription = null;
+    }
+    
     @Override
     public void run() 
     {
-        System.out.println(this.getClass().getName() + " ["+Thread.currentThread().getName()+"] created!");
+        Log.info("{} [{}] created!", this.getClass().getName(), Thread.currentThread().getName());
         while(running)
         {
             if(!input_queue.isEmpty())
@@ -137,20 +427,30 @@ public abstract class Worker implements NotificationQueue.Listener<Task>, Runnab
             Worker.class.notifyAll();
         }
             
-        System.out.println("["+Thread.currentThread().getName()+"] Worker Internal Updater stopped!");
+        Log.info("[{}] Worker Internal Updater stopped!", Thread.currentThread().getName());
     }
     
     /**
-     * Implements locking / unlocking of the input_queue access. Calls the processStep
-     * method while insure itself is the only thread processing the task.
+     * Takes Tasks from its home stripe of the input_queue, stealing from the other
+     * stripes when its own is empty. Calls the processStep method while insure
+     * itself is the only thread processing the task.
+     * 
+     * Tasks are claimed in batches which grow with the backlog, so that under
+     * load the cost of taking Tasks, waking up and publishing results is paid
+     * once per batch rather than once per Task.
      */
     private class WorkerRunnable implements Runnable
     {
-        private volatile Task task;
+        private final List<Task> batch = new ArrayList<>();
+        private final List<Task> finished = new ArrayList<>();
+        // Tasks copied into the TaskBatch, in the order of its entries
+        private final List<Task> batched = new ArrayList<>();
         private boolean running = true;
+        private final int home;
 
-        public WorkerRunnable()
+        public WorkerRunnable(int home)
         {
+            this.home = home;
         }
 
         @Override
@@ -160,7 +460,7 @@ public abstract class Worker implements NotificationQueue.Listener<Task>, Runnab
             {
                 if(input_queue.isEmpty())
                 {
-                    System.out.println(Worker.this.getClass().getName()+" ["+Thread.currentThread().getName()+"] waiting!");
+                    Log.debug("{} [{}] waiting!", Worker.this.getClass().getName(), Thread.currentThread().getName());
                     
                     // wait
                     synchronized(Worker.class)
@@ -174,22 +474,59 @@ public abstract class Worker implements NotificationQueue.Listener<Task>, Runnab
                 }
                 else
                 {
-                    // critical section - start
-                    try {
-                        lock.lock();
-                        criticalSection();
-                    } finally {
-                        lock.unlock();
-                    }
-                    
-                    // critical section - end
+                    // the stripes are thread-safe, no lock is needed to take a task
+                    criticalSection();
+                    TaskBatch arrays = acquireBatch();
                     
-                    if(task != null)
+                    for(Task task : batch)
                     {
-                        System.out.println(Worker.this.getClass().getName()+" ["+Thread.currentThread().getName()+"] working!");
+                        recordDelay(task);
+                        
+                        if(task.isAbandoned())
+                        {
+                            skip(task);
+                            continue;
+                        }
+                        
+                        // processed together once the whole claim has been seen
+                        if(arrays != null && canBatch(task) && arrays.add(task))
+                        {
+                            batched.add(task);
+                            continue;
+                        }
+                        
+                        Log.debug("{} [{}] working!", Worker.this.getClass().getName(), Thread.currentThread().getName());
 
+                        TaskEvent.Step step = new TaskEvent.Step();
+                        step.begin();
                         processStep(task); // using pass by reference
-                        addToQueues(task);
+                        step.finish(task, Worker.this.getClass().getName());
+                        
+                        if(isFinished(task))
+                        {
+                            finished.add(task);
+                        }
+                        else
+                        {
+                            // preempted - resume after the waiting tasks
+                            task.setQueuedAt(System.nanoTime());
+                            input_queue.offer(home, task);
+                        }
+                    }
+                    
+                    if(arrays != null)
+                    {
+                        processBatched(arrays);
+                    }
+                    
+                    addToQueues(finished);
+                    finished.clear();
+                    
+                    if(!batch.isEmpty())
+                    {
+                        // straight on to the next batch while there is work
+                        batch.clear();
+                        continue;
                     }
                 }
                 
@@ -200,25 +537,68 @@ public abstract class Worker implements NotificationQueue.Listener<Task>, Runnab
                 }
             }
             
-            System.out.println("["+Thread.currentThread().getName()+"] Worker Runnable stopped!");
+            Log.info("[{}] Worker Runnable stopped!", Thread.currentThread().getName());
         }
 
         /**
-         * Method which sets the internal task field to a given Task object.
-         * @param task to assign
+         * This method claims a batch of Tasks from the home stripe of the input
+         * queue, stealing from other stripes if need be. The batch is this
+         * thread's share of the backlog, from 1 up to the maximum batch size.
+         */
+        private void criticalSection()
+        {
+            int size = Math.max(1, Math.min(maxBatch, input_queue.size() / threads.length));
+            input_queue.drainTo(home, batch, size);
+        }
+        
+        /**
+         * Takes a TaskBatch from the pool, if batches are enabled. There is one
+         * per WorkerRunnable, so this does not wait.
+         * @return empty batch, or null to process every Task one at a time
          */
-        public void setTask(Task task)
+        private TaskBatch acquireBatch()
         {
-            this.task = task;
+            TaskBatch.Pool pool = batches;
+            if(pool == null)
+            {
+                return null;
+            }
+            
+            try {
+                return pool.acquire();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
         }
         
         /**
-         * This method polls a Task from the input queue, ensuring that only one
-         * WorkerRunnable is polling at one time.
+         * Processes the Tasks copied into a TaskBatch, copies their results back
+         * and returns the batch to the pool.
+         * @param arrays batch holding the batched Tasks
          */
-        private void criticalSection()
+        private void processBatched(TaskBatch arrays)
         {
-            setTask(input_queue.poll());
+            if(!batched.isEmpty())
+            {
+                processBatch(arrays);
+                
+                for(int i = 0; i < batched.size(); ++i)
+                {
+                    Task task = batched.get(i);
+                    arrays.copyTo(i, task);
+                    
+                    // abandoned while in the batch, there is no result to give
+                    if(task.isAbandoned())
+                    {
+                        task.cancel();
+                    }
+                    finished.add(task);
+                }
+                batched.clear();
+            }
+            
+            batches.release(arrays);
         }
         
         /**
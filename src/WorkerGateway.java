@@ -0,0 +1,301 @@
+/**
+ * @author Waldo & Penzen
+ */
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A WorkerGateway lets RemoteWorker processes take part in a pipeline stage.
+ *
+ * A RemoteWorker pulls a batch of Tasks for a stage, which are taken out of that
+ * stage's Worker input queue and leased to it for a fixed time. When the results
+ * come back they are handed to the stage's Worker, which passes them on exactly
+ * as if one of its own threads had processed them. If a lease expires or the
+ * RemoteWorker disconnects first, its Tasks are put back into the input queue
+ * and any late results for them are ignored.
+ */
+public class WorkerGateway
+{
+    public static final long DEFAULT_LEASE = 30000;
+    private static final int REAPER_INTERVAL = 100;
+
+    private final int port;
+    private final long leaseMillis;
+    private final Map<WorkerMessage.Stage, Worker> stages = new EnumMap<>(WorkerMessage.Stage.class);
+    private final Map<Long, Lease> leases = new ConcurrentHashMap<>();
+    private final AtomicLong nextLease = new AtomicLong();
+
+    private ServerSocket serverSocket;
+    private volatile boolean running = true;
+
+    /**
+     * Constructor for a WorkerGateway object.
+     * @param port to accept RemoteWorker connections on
+     * @param leaseMillis how long a RemoteWorker may hold Tasks before they are re-queued
+     */
+    public WorkerGateway(int port, long leaseMillis)
+    {
+        this.port = port;
+        this.leaseMillis = leaseMillis;
+    }
+
+    /**
+     * Registers the local Worker of a pipeline stage.
+     * @param stage served by the Worker
+     * @param worker whose input queue remote workers pull from
+     */
+    public void addStage(WorkerMessage.Stage stage, Worker worker)
+    {
+        stages.put(stage, worker);
+    }
+
+    /**
+     * Starts accepting RemoteWorker connections and expiring leases.
+     */
+    public void start()
+    {
+        try {
+            serverSocket = new ServerSocket(port);
+            System.out.println("Worker gateway started on port " + port);
+        } catch (IOException ex) {
+            System.err.println("Worker gateway can't listen on port: " + ex);
+            return;
+        }
+
+        new Thread(new Acceptor()).start();
+        new Thread(new Reaper()).start();
+    }
+
+    /**
+     * Internal helper method which leases up to max Tasks of a stage.
+     */
+    private Lease lease(WorkerMessage.Stage stage, int max, Connection owner)
+    {
+        Worker worker = stages.get(stage);
+        List<Task> tasks = new ArrayList<>();
+        if(worker != null)
+        {
+            worker.drainTo(tasks, max);
+        }
+
+        Lease lease = new Lease(nextLease.incrementAndGet(), worker, tasks, owner);
+        if(!tasks.isEmpty())
+        {
+            leases.put(lease.id, lease);
+        }
+
+        return lease;
+    }
+
+    /**
+     * Internal helper method which hands the results of a lease to its Worker.
+     */
+    private void complete(long leaseId, List<Task> results)
+    {
+        Lease lease = leases.remove(leaseId);
+        if(lease == null)
+        {
+            // expired and already re-queued
+            return;
+        }
+
+        // results come back in the order the Tasks were leased
+        for(int i = 0; i < results.size() && i < lease.tasks.size(); ++i)
+        {
+            Task result = results.get(i);
+            Task original = lease.tasks.get(i);
+            if(original == null || original.getSerial() != result.getSerial())
+            {
+                continue;
+            }
+
+            // copy the results onto the original object, which the client's
+            // InputHandler may still cancel
+            original.setCurrent(result.getCurrent());
+            original.setValue(result.getValue());
+            original.setPrime(result.isPrime());
+            lease.tasks.set(i, null);
+
+            lease.worker.complete(original);
+        }
+
+        // anything not returned goes back to the queue
+        release(lease);
+    }
+
+    /**
+     * Internal helper method which re-queues every Task still held by a lease.
+     */
+    private void release(Lease lease)
+    {
+        for(Task task : lease.tasks)
+        {
+            if(task != null)
+            {
+                lease.worker.process(task);
+            }
+        }
+
+        lease.tasks.clear();
+    }
+
+    /**
+     * Method to initiate a safe, clean shutdown of the WorkerGateway.
+     */
+    public void requestStop()
+    {
+        this.running = false;
+
+        try {
+            if(serverSocket != null)
+            {
+                serverSocket.close();
+            }
+        } catch (IOException ignored) {
+            /* Ignored */
+        }
+    }
+
+    /**
+     * A Lease records the Tasks a RemoteWorker is processing and when they are
+     * due back. Tasks are held in the order they were sent, so that two Tasks
+     * with the same identifier are still told apart. Only one of complete and
+     * the Reaper takes a Lease out of the leases map, so its Tasks are only
+     * handled by one thread.
+     */
+    private static class Lease
+    {
+        private final long id;
+        private final Worker worker;
+        // leased tasks, null once their result has come back
+        private final List<Task> tasks;
+        private final Connection owner;
+        private final long created;
+
+        public Lease(long id, Worker worker, List<Task> tasks, Connection owner)
+        {
+            this.id = id;
+            this.worker = worker;
+            this.tasks = tasks;
+            this.owner = owner;
+            this.created = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * The Acceptor accepts RemoteWorker connections.
+     */
+    private class Acceptor implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            while(running)
+            {
+                try {
+                    Socket socket = serverSocket.accept();
+                    System.out.println("[Gateway] Remote worker connected from " + socket.getInetAddress());
+                    new Thread(new Connection(socket)).start();
+                } catch (IOException ex) {
+                    if(running)
+                    {
+                        System.err.println("Worker gateway can't accept connection: " + ex);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The Reaper re-queues the Tasks of expired leases.
+     */
+    private class Reaper implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            while(running)
+            {
+                long now = System.currentTimeMillis();
+                for(Lease lease : leases.values())
+                {
+                    if(now - lease.created > leaseMillis && leases.remove(lease.id) != null)
+                    {
+                        System.out.println("[Gateway] Lease " + lease.id + " expired, re-queueing " + lease.tasks.size() + " task(s)");
+                        release(lease);
+                    }
+                }
+
+                try {
+                    Thread.sleep(REAPER_INTERVAL);
+                } catch (InterruptedException ignored) {
+                    /* Ignored */
+                }
+            }
+        }
+    }
+
+    /**
+     * A Connection serves the PULL and RESULT messages of a single RemoteWorker.
+     */
+    private class Connection implements Runnable
+    {
+        private final Socket socket;
+
+        public Connection(Socket socket)
+        {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run()
+        {
+            try {
+                ObjectOutputStream oos = new ObjectOutputStream(socket.getOutputStream());
+                oos.flush();
+                ObjectInputStream ois = new ObjectInputStream(socket.getInputStream());
+
+                while(running)
+                {
+                    WorkerMessage message = (WorkerMessage) ois.readObject();
+
+                    if(message.getType() == WorkerMessage.Type.PULL)
+                    {
+                        Lease lease = lease(message.getStage(), message.getMax(), this);
+                        oos.writeObject(new WorkerMessage(WorkerMessage.Type.LEASE, message.getStage(),
+                                lease.id, 0, new ArrayList<>(lease.tasks)));
+                        oos.reset();
+                        oos.flush();
+                    }
+                    else if(message.getType() == WorkerMessage.Type.RESULT)
+                    {
+                        complete(message.getLeaseId(), message.getTasks());
+                    }
+                }
+            } catch (IOException | ClassNotFoundException ex) {
+                // remote worker has gone
+            }
+
+            System.out.println("[Gateway] Remote worker " + socket.getInetAddress() + " has disconnected!");
+
+            // re-queue everything it was holding straight away
+            for(Lease lease : leases.values())
+            {
+                if(lease.owner == this && leases.remove(lease.id) != null)
+                {
+                    release(lease);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * @author Waldo & Penzen
+ */
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * A WorkerMessage is exchanged between a ProcessServer's WorkerGateway and a
+ * RemoteWorker.
+ */
+public class WorkerMessage implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+    
+    /**
+     * Enumeration of the kinds of message exchanged with a RemoteWorker.
+     */
+    enum Type {
+        // remote worker asking for up to max tasks of a stage
+        PULL,
+        // tasks leased to a remote worker, possibly none
+        LEASE,
+        // processed tasks of a lease
+        RESULT
+    }
+    
+    /**
+     * Enumeration of the pipeline stages a RemoteWorker can process.
+     */
+    enum Stage {
+        FACTORIAL,
+        PRIME
+    }
+
+    private final Type type;
+    private final Stage stage;
+    private final long leaseId;
+    private final int max;
+    private final List<Task> tasks;
+
+    public WorkerMessage(Type type, Stage stage, long leaseId, int max, List<Task> tasks)
+    {
+        this.type = type;
+        this.stage = stage;
+        this.leaseId = leaseId;
+        this.max = max;
+        this.tasks = tasks;
+    }
+
+    /**
+     * The methods below are the getters for the private variables above.
+     */
+    public Type getType()
+    {
+        return this.type;
+    }
+
+    public Stage getStage()
+    {
+        return this.stage;
+    }
+
+    public long getLeaseId()
+    {
+        return this.leaseId;
+    }
+
+    public int getMax()
+    {
+        return this.max;
+    }
+
+    public List<Task> getTasks()
+    {
+        return this.tasks;
+    }
+
+    @Override
+    public String toString()
+    {
+        return ("WorkerMessage("+this.getType()+") "+this.getStage()+" lease("+this.getLeaseId()+")");
+    }
+}